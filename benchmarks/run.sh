@@ -0,0 +1,8 @@
+#!/bin/sh
+# Build the benchmarks against the working tree and run them with the GC
+# profiler, writing the results to benchmarks/target/results.json. Extra
+# arguments go to JMH, e.g. a benchmark name regex: benchmarks/run.sh Codec
+set -e
+cd "$(dirname "$0")"
+mvn -B -q package -DskipTests
+exec java -jar target/benchmarks.jar -prof gc -rf json -rff target/results.json "$@"
@@ -0,0 +1,153 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of logging an event on the caller's thread, under 1 to 64 threads
+ * logging at once.
+ *
+ * The appender's transport encodes every event on one thread and discards
+ * the bytes, so the network is out of the picture but the consumer still
+ * competes with the producers as it would in production. doAppend goes
+ * through AppenderBase's lock, as logback does; append calls the appender
+ * directly, measuring just the queue. Once the consumer falls behind, the
+ * queue fills and events are dropped; the drop count is printed at teardown.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AppendBenchmark {
+    /**
+     * Encodes and discards events on a single thread.
+     */
+    static class DiscardingAppender extends AbstractGELFAppender {
+        private Thread consumer;
+
+        @Override
+        boolean startTransport() {
+            consumer = new Thread(new Runnable() {
+                public void run() {
+                    List<QueuedEvent> batch = new ArrayList<QueuedEvent>();
+                    ByteBuffersOutputStream out = new ByteBuffersOutputStream(slabPool);
+                    while (isRunning.get()) {
+                        batch.clear();
+                        try {
+                            if (drainQueue(batch, 128) == 0) {
+                                QueuedEvent event = pollQueue(100, TimeUnit.MILLISECONDS);
+                                if (event != null)
+                                    batch.add(event);
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (QueuedEvent event : batch) {
+                            out.reset();
+                            event.writeFramed(codec(), out);
+                        }
+                        completed(batch.size());
+                    }
+                }
+            }, "benchmark-consumer");
+            consumer.setDaemon(true);
+            consumer.start();
+            return true;
+        }
+
+        @Override
+        void stopTransport() {
+            consumer.interrupt();
+            join(consumer);
+        }
+    }
+
+    @Param({"false", "true"})
+    public boolean eagerEncoding;
+
+    @Param({"false", "true"})
+    public boolean levelLanes;
+
+    private DiscardingAppender appender;
+    private LoggingEvent event;
+
+    @Setup
+    public void setup() {
+        appender = new DiscardingAppender();
+        appender.setContext(new LoggerContext());
+        appender.setLocalHost("app-host-01");
+        appender.setQueueSize(65536);
+        appender.setEagerEncoding(eagerEncoding);
+        appender.setLevelLanes(levelLanes);
+        appender.start();
+        event = new LoggingEvent();
+        event.setLevel(Level.INFO);
+        event.setMessage("request {} from {} took {} ms");
+        event.setArgumentArray(new Object[] { "GET /api/v1/accounts/12345/orders", "10.1.2.3", 1234 });
+        event.setTimeStamp(System.currentTimeMillis());
+        event.setLoggerName("com.example.service.AccountController");
+        event.setThreadName("http-nio-8080-exec-17");
+    }
+
+    @TearDown
+    public void teardown() {
+        appender.stop();
+        System.out.println("dropped " + appender.getDroppedCount() + " events");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void doAppend1() {
+        appender.doAppend(event);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void doAppend8() {
+        appender.doAppend(event);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void doAppend64() {
+        appender.doAppend(event);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void append1() {
+        appender.append(event);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void append8() {
+        appender.append(event);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void append64() {
+        appender.append(event);
+    }
+}
@@ -0,0 +1,70 @@
+package org.metastatic.gelfback;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a message into a {@link ByteBuffersOutputStream} in small pieces, as
+ * the JSON writer does, and getting it back out as buffers.
+ *
+ * fresh allocates a new stream and calls toBuffers(), as a one-off encode
+ * does; pooled reuses one stream on a slab pool and calls readableBuffers(),
+ * as the senders do. Run with -prof gc to compare allocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ByteBuffersOutputStreamBenchmark {
+    private static final int PIECE_SIZE = 64;
+
+    /**
+     * Total bytes written per operation; large sizes span several slabs.
+     */
+    @Param({"256", "4096", "65536"})
+    public int size;
+
+    private byte[] piece;
+    private ByteBuffersOutputStream pooled;
+
+    @Setup
+    public void setup() {
+        piece = new byte[PIECE_SIZE];
+        Arrays.fill(piece, (byte) 'x');
+        pooled = new ByteBuffersOutputStream(new SlabPool(AbstractGELFAppender.SLAB_SIZE, 64, false));
+    }
+
+    private void fill(ByteBuffersOutputStream out) {
+        for (int written = 0; written < size; written += PIECE_SIZE)
+            out.write(piece, 0, Math.min(PIECE_SIZE, size - written));
+    }
+
+    @Benchmark
+    public ByteBuffer[] fresh() {
+        ByteBuffersOutputStream out = new ByteBuffersOutputStream();
+        fill(out);
+        return out.toBuffers();
+    }
+
+    @Benchmark
+    public ByteBuffer[] pooled() {
+        pooled.reset();
+        fill(pooled);
+        return pooled.readableBuffers();
+    }
+}
@@ -0,0 +1,102 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding one event with {@link GELFCodec}, for the shapes of event that
+ * cost the most in different ways: a short line, a multi-line message (sent
+ * as both full and short message), a deep stack trace, and a codec with many
+ * static fields.
+ *
+ * Run with -prof gc for the bytes allocated per operation; framed allocates
+ * a new stream per event, while writeFramed writes into a reused one, as the
+ * senders do. The stacktrace case encodes the same throwable every time, so
+ * after the first operation it measures the rendered stack trace cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    private static final int STACK_DEPTH = 100;
+    private static final int STATIC_FIELDS = 20;
+
+    @Param({"small", "multiline", "stacktrace", "staticfields"})
+    public String message;
+
+    private GELFCodec codec;
+    private LoggingEvent event;
+    private ByteBuffersOutputStream out;
+
+    @Setup
+    public void setup() {
+        event = new LoggingEvent();
+        event.setLevel(message.equals("stacktrace") ? Level.ERROR : Level.INFO);
+        event.setTimeStamp(System.currentTimeMillis());
+        event.setLoggerName("com.example.service.AccountController");
+        event.setThreadName("http-nio-8080-exec-17");
+        if (message.equals("multiline")) {
+            event.setMessage("request {} failed:\n{}");
+            event.setArgumentArray(new Object[] { "GET /api/v1/accounts/12345/orders",
+                    "upstream said:\n  status: 503\n  retry-after: 30\n  body: service unavailable" });
+        } else {
+            event.setMessage("request {} from {} took {} ms");
+            event.setArgumentArray(new Object[] { "GET /api/v1/accounts/12345/orders", "10.1.2.3", 1234 });
+        }
+        if (message.equals("stacktrace"))
+            event.setThrowableProxy(new ThrowableProxy(deepException(STACK_DEPTH)));
+        Map<String, String> staticFields = null;
+        if (message.equals("staticfields")) {
+            staticFields = new LinkedHashMap<String, String>();
+            for (int i = 0; i < STATIC_FIELDS; i++)
+                staticFields.put("field_" + i, "value of static field number " + i);
+        }
+        codec = new GELFCodec.Builder("app-host-01")
+                .includeStackTrace(true)
+                .includeMdc(true)
+                .includeMarker(true)
+                .staticFields(staticFields)
+                .numericTimestamp(true)
+                .build();
+        out = new ByteBuffersOutputStream(new SlabPool(AbstractGELFAppender.SLAB_SIZE, 16, false));
+    }
+
+    private static Exception deepException(int depth) {
+        if (depth == 0)
+            return new IllegalStateException("connection reset", new IOException("broken pipe"));
+        return deepException(depth - 1);
+    }
+
+    @Benchmark
+    public ByteBuffer[] framed() {
+        return codec.framed(event);
+    }
+
+    @Benchmark
+    public ByteBuffersOutputStream writeFramed() {
+        out.reset();
+        codec.writeFramed(event, null, out);
+        return out;
+    }
+}
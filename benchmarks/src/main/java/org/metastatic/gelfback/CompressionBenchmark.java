@@ -0,0 +1,94 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU time against bytes on the wire for compressing one encoded GELF
+ * message, at several deflate levels.
+ *
+ * The time per operation is the CPU cost; the bytesIn and bytesOut counters
+ * (totals over the iteration) give the compression ratio.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+    @Param({"GZIP", "ZLIB"})
+    public String compression;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    /**
+     * A one-line message, or one with a stack trace.
+     */
+    @Param({"line", "stacktrace"})
+    public String message;
+
+    private ByteBuffersOutputStream encoded;
+    private ByteBuffersOutputStream compressed;
+    private GELFCompressor compressor;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long bytesIn;
+        public long bytesOut;
+    }
+
+    @Setup
+    public void setup() {
+        LoggingEvent event = new LoggingEvent();
+        event.setLevel(Level.WARN);
+        event.setMessage("request {} from {} failed after {} ms");
+        event.setArgumentArray(new Object[] { "GET /api/v1/accounts/12345/orders", "10.1.2.3", 1234 });
+        event.setTimeStamp(System.currentTimeMillis());
+        event.setLoggerName("com.example.service.AccountController");
+        event.setThreadName("http-nio-8080-exec-17");
+        if (message.equals("stacktrace"))
+            event.setThrowableProxy(new ThrowableProxy(new IllegalStateException("connection reset")));
+        SlabPool pool = new SlabPool(AbstractGELFAppender.SLAB_SIZE, 16, false);
+        encoded = new ByteBuffersOutputStream(pool);
+        new GELFCodec("app-host-01", false, true)
+                .writeFramed(event, Collections.<String, String>emptyMap(), encoded);
+        encoded.readableBuffers();
+        compressed = new ByteBuffersOutputStream(pool);
+        compressor = new GELFCompressor(GELFCompression.valueOf(compression), level);
+    }
+
+    @TearDown
+    public void teardown() {
+        compressor.end();
+    }
+
+    @Benchmark
+    public ByteBuffersOutputStream compress(Counters counters) {
+        long length = encoded.size() - 1;
+        compressed.reset();
+        compressor.compress(encoded.readableBuffers(), encoded.slabCount(), length, compressed);
+        counters.bytesIn += length;
+        counters.bytesOut += compressed.size();
+        return compressed;
+    }
+}
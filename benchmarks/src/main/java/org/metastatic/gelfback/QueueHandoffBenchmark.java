@@ -0,0 +1,136 @@
+package org.metastatic.gelfback;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hand-off between N producer threads and one consumer, comparing the
+ * ArrayBlockingQueue the TCP appender used to use with MpscRingBuffer.
+ *
+ * The offered/taken counters give the rate of events actually handed off;
+ * rejected counts offers that found the queue full.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class QueueHandoffBenchmark {
+    private static final int CAPACITY = 1024;
+    private static final Object EVENT = new Object();
+
+    interface Handoff {
+        boolean offer(Object e);
+        Object poll();
+    }
+
+    @Param({"ArrayBlockingQueue", "MpscRingBuffer"})
+    public String queue;
+
+    private Handoff handoff;
+
+    @Setup
+    public void setup() {
+        if (queue.equals("ArrayBlockingQueue")) {
+            final ArrayBlockingQueue<Object> q = new ArrayBlockingQueue<Object>(CAPACITY);
+            handoff = new Handoff() {
+                public boolean offer(Object e) {
+                    return q.offer(e);
+                }
+
+                public Object poll() {
+                    return q.poll();
+                }
+            };
+        } else {
+            final MpscRingBuffer<Object> q = new MpscRingBuffer<Object>(CAPACITY, WaitStrategy.PARK);
+            handoff = new Handoff() {
+                public boolean offer(Object e) {
+                    return q.offer(e);
+                }
+
+                public Object poll() {
+                    return q.poll();
+                }
+            };
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long offered;
+        public long rejected;
+        public long taken;
+    }
+
+    private void produce(Counters counters) {
+        if (handoff.offer(EVENT))
+            counters.offered++;
+        else
+            counters.rejected++;
+    }
+
+    private void consume(Counters counters) {
+        if (handoff.poll() != null)
+            counters.taken++;
+    }
+
+    @Benchmark
+    @Group("producers1")
+    @GroupThreads(1)
+    public void produce1(Counters counters) {
+        produce(counters);
+    }
+
+    @Benchmark
+    @Group("producers1")
+    @GroupThreads(1)
+    public void consume1(Counters counters) {
+        consume(counters);
+    }
+
+    @Benchmark
+    @Group("producers8")
+    @GroupThreads(8)
+    public void produce8(Counters counters) {
+        produce(counters);
+    }
+
+    @Benchmark
+    @Group("producers8")
+    @GroupThreads(1)
+    public void consume8(Counters counters) {
+        consume(counters);
+    }
+
+    @Benchmark
+    @Group("producers64")
+    @GroupThreads(64)
+    public void produce64(Counters counters) {
+        produce(counters);
+    }
+
+    @Benchmark
+    @Group("producers64")
+    @GroupThreads(1)
+    public void consume64(Counters counters) {
+        consume(counters);
+    }
+}
@@ -0,0 +1,1126 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * The queueing and encoding shared by the GELF appenders.
+ *
+ * {@link #append(ILoggingEvent)} queues events in a bounded ring buffer,
+ * applying the {@link OverflowPolicy} when it is full, and never blocks
+ * otherwise. With levelLanes set, there is a ring buffer per level instead,
+ * and higher levels are sent first under a backlog; see {@link LevelLanes}.
+ *
+ * A transport, started by {@link #startTransport()}, takes events off the
+ * queue, encodes them with the shared {@link GELFCodec}, and sends them.
+ *
+ * With rateLimitEvents set, events first pass through a {@link GELFRateLimiter},
+ * which lets through that many events per logger, level and message template in
+ * each rateLimitWindowMillis; the rest are counted, and once the window ends a
+ * copy of the last one is sent with a _suppressed_count field.
+ *
+ * While started, the appender is registered as a {@link GELFAppenderMXBean}
+ * with the platform MBean server, unless jmx is turned off.
+ *
+ * {@link #stop()} refuses new events, then gives the transport up to
+ * stopTimeoutMillis to send what is queued, in batches as large as it allows,
+ * before stopping it and counting whatever is left as abandoned.
+ */
+public abstract class AbstractGELFAppender extends AppenderBase<ILoggingEvent> implements GELFAppenderMXBean {
+    private static final Pattern keyValuePattern = Pattern.compile("(?<key>[^=]+)=(?<value>[^,]+)(?:,|$)");
+
+    static final int DEFAULT_QUEUE_SIZE = 1024;
+    static final int SLAB_SIZE = 4096;
+    static final int MAX_POOLED_SLABS = 64;
+    static final int RATE_LIMIT_TABLE_SIZE = 4096;
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    static final long JOIN_MILLIS = 1000;
+
+    static final boolean debugging;
+
+    static {
+        String s = System.getenv("GELFBACK_DEBUG_TO_STDERR");
+        debugging = s != null && s.equalsIgnoreCase("true");
+    }
+
+    volatile LevelLanes events = new LevelLanes(DEFAULT_QUEUE_SIZE, WaitStrategy.PARK);
+    final AtomicBoolean isStarted = new AtomicBoolean(false);
+    final AtomicBoolean isRunning = new AtomicBoolean(false);
+    // Set while stop() waits for the queue to drain; senders stop lingering.
+    volatile boolean draining;
+
+    String host;
+    int port;
+    private String localhost;
+    boolean includeCallerData;
+    private boolean includeStackTrace;
+    private boolean includeMdc = true;
+    private Set<String> mdcIncludes;
+    private Set<String> mdcExcludes;
+    private boolean includeMarker = true;
+    private boolean numericTimestamp = true;
+    private final AtomicReference<GELFCodec> codec = new AtomicReference<GELFCodec>();
+    int ttlSeconds = 60;
+    private boolean directBuffers;
+    SlabPool slabPool;
+    private boolean eagerEncoding;
+    private Map<String, String> staticFields;
+    private GELFCompression compression = GELFCompression.NONE;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    int compressionThreshold = 512;
+    private final AtomicLong completed = new AtomicLong();
+    private final Object drainLock = new Object();
+    private final AtomicInteger drainWaiters = new AtomicInteger();
+    private long stopTimeoutMillis = 5000;
+    private final AtomicLong abandoned = new AtomicLong();
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private boolean levelLanes;
+    private int[] laneQueueSizes;
+    private int[] laneWeights = { 8, 4, 2, 1 };
+    private WaitStrategy waitStrategy = WaitStrategy.PARK;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private long blockTimeoutMillis = 100;
+    private Level dropThreshold = Level.WARN;
+    private long maxQueuedBytes = 0;
+    // maxQueuedBytes as of start; queued bytes are only counted when it's set.
+    private volatile long byteBudget;
+    private final LongAdder queuedBytes = new LongAdder();
+    private final AtomicLong queuedBytesHighWater = new AtomicLong();
+    private final AtomicLong droppedNewest = new AtomicLong();
+    private final AtomicLong droppedOldest = new AtomicLong();
+    private final AtomicLong droppedOnTimeout = new AtomicLong();
+    private final AtomicLong droppedBelowLevel = new AtomicLong();
+    private int rateLimitEvents;
+    private long rateLimitWindowMillis = 1000;
+    private volatile GELFRateLimiter rateLimiter;
+    private final AtomicLong suppressed = new AtomicLong();
+    final GELFMetrics metrics = new GELFMetrics();
+    private boolean jmx = true;
+    private ObjectName mbeanName;
+    private final GELFRateLimiter.Sink summarySink = new GELFRateLimiter.Sink() {
+        public void summary(ILoggingEvent lastSuppressed, long suppressedCount) {
+            try {
+                enqueue(queued(lastSuppressed, false,
+                        Collections.singletonMap("suppressed_count", suppressedCount)));
+            } catch (RuntimeException x) {
+                debug(x, "failed to queue summary of %d suppressed events", suppressedCount);
+            }
+        }
+    };
+
+    @Override
+    public void start() {
+        rebuildCodec();
+        if (isStarted.compareAndSet(false, true)) {
+            events = levelLanes ? new LevelLanes(laneQueueSizes(), laneWeights, waitStrategy)
+                    : new LevelLanes(queueSize, waitStrategy);
+            completed.set(0);
+            byteBudget = maxQueuedBytes;
+            queuedBytes.reset();
+            slabPool = new SlabPool(SLAB_SIZE, MAX_POOLED_SLABS, directBuffers);
+            rateLimiter = rateLimitEvents > 0
+                    ? new GELFRateLimiter(RATE_LIMIT_TABLE_SIZE, rateLimitEvents, rateLimitWindowMillis)
+                    : null;
+            isRunning.set(true);
+            if (!startTransport()) {
+                isRunning.set(false);
+                isStarted.set(false);
+                return;
+            }
+            if (jmx)
+                registerMBean();
+        }
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        // Refuse new events first, so the queue can only shrink.
+        super.stop();
+        if (!isRunning.get())
+            return;
+        GELFRateLimiter limiter = rateLimiter;
+        if (limiter != null)
+            limiter.flush(summarySink);
+        long pending = pendingCount();
+        long start = System.nanoTime();
+        draining = true;
+        try {
+            await(TimeUnit.MILLISECONDS.toNanos(stopTimeoutMillis), false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (isRunning.compareAndSet(true, false)) {
+            // The transport discards whatever it still holds as it stops.
+            long left = pendingCount();
+            stopTransport();
+            unregisterMBean();
+            draining = false;
+            abandoned.addAndGet(left);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (left > 0)
+                addWarn(String.format("abandoned %d of %d queued events after %d ms", left, pending, millis));
+            else if (pending > 0)
+                addInfo(String.format("flushed %d queued events in %d ms", pending, millis));
+        }
+    }
+
+    /**
+     * @return The number of events queued but not yet written or discarded.
+     */
+    private long pendingCount() {
+        return events.producedCount() - completed.get();
+    }
+
+    private void registerMBean() {
+        try {
+            String name = getName() != null ? getName()
+                    : getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this));
+            ObjectName objectName = new ObjectName("org.metastatic.gelfback:type=" + getClass().getSimpleName()
+                    + ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            mbeanName = objectName;
+        } catch (JMException e) {
+            addWarn("can't register with JMX", e);
+        }
+    }
+
+    private void unregisterMBean() {
+        ObjectName objectName = mbeanName;
+        if (objectName == null)
+            return;
+        mbeanName = null;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            addWarn("can't unregister from JMX", e);
+        }
+    }
+
+    /**
+     * Start the threads that take events off the queue and send them. The
+     * queue and slab pool are ready, and isRunning is set.
+     *
+     * @return False if the transport couldn't start; the appender stays stopped.
+     */
+    abstract boolean startTransport();
+
+    /**
+     * Stop the transport, waiting a bounded time for its threads to finish.
+     * isRunning is already clear, and events still queued are abandoned.
+     */
+    abstract void stopTransport();
+
+    /**
+     * Called when the Graylog host or port changes.
+     */
+    void targetChanged() {
+    }
+
+    private void rebuildCodec() {
+        codec.set(new GELFCodec.Builder(localhost)
+                .includeCallerData(includeCallerData)
+                .includeStackTrace(includeStackTrace)
+                .includeMdc(includeMdc)
+                .mdcIncludes(mdcIncludes)
+                .mdcExcludes(mdcExcludes)
+                .includeMarker(includeMarker)
+                .staticFields(staticFields)
+                .numericTimestamp(numericTimestamp)
+                .build());
+    }
+
+    GELFCodec codec() {
+        return codec.get();
+    }
+
+    @Override
+    protected void append(ILoggingEvent e) {
+        debug("appending event %s", e);
+        try {
+            GELFRateLimiter limiter = rateLimiter;
+            if (limiter != null) {
+                long now = e.getTimeStamp();
+                limiter.sweep(now, summarySink);
+                if (!limiter.tryAcquire(e, now, summarySink)) {
+                    suppressed.incrementAndGet();
+                    return;
+                }
+            }
+            enqueue(queued(e, includeCallerData, null));
+        } catch (RuntimeException x) {
+            debug(x, "failed to queue event %s", e);
+        }
+    }
+
+    private QueuedEvent queued(ILoggingEvent e, boolean callerData, Map<String, ?> extraFields) {
+        if (eagerEncoding) {
+            long start = System.nanoTime();
+            byte[] frame = codec().encodeFramed(e, extraFields);
+            metrics.encodeNanos.record(System.nanoTime() - start);
+            return new EncodedEvent(e.getLevel(), e.getThreadName(), frame);
+        }
+        return new WrappedLoggingEvent(e, callerData, extraFields);
+    }
+
+    /**
+     * Queue an event, evicting older ones until it fits.
+     */
+    private void evictAndOffer(MpscRingBuffer<QueuedEvent> queue, QueuedEvent event, int size, long byteBudget) {
+        while (!offer(queue, event, size, byteBudget)) {
+            // A full lane makes room in itself; a full byte budget takes the
+            // oldest event at the lowest level no higher than this one's.
+            QueuedEvent oldest = queue.remainingCapacity() == 0 ? queue.poll()
+                    : events.pollLowest(event.getLevel());
+            if (oldest == null) {
+                if (queue.remainingCapacity() == 0)
+                    continue;
+                // The budget is held by higher levels, or the sender took the
+                // events and hasn't released their bytes yet.
+                droppedNewest.incrementAndGet();
+                return;
+            }
+            released(oldest.estimatedSize());
+            droppedOldest.incrementAndGet();
+            completed(1);
+        }
+    }
+
+    /**
+     * Queue an event, applying the overflow policy if the queue or the byte budget
+     * is full. Never throws, and only blocks under {@link OverflowPolicy#BLOCK}.
+     */
+    private void enqueue(QueuedEvent event) {
+        MpscRingBuffer<QueuedEvent> queue = events.laneFor(event.getLevel());
+        long byteBudget = this.byteBudget;
+        int size = event.estimatedSize();
+        switch (overflowPolicy) {
+            case BLOCK:
+                if (offer(queue, event, size, byteBudget))
+                    return;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+                    LockSupport.parkNanos(this, Math.min(remaining, BLOCKED_PARK_NANOS));
+                    if (offer(queue, event, size, byteBudget))
+                        return;
+                }
+                droppedOnTimeout.incrementAndGet();
+                break;
+
+            case DROP_BELOW_LEVEL:
+                if (!event.getLevel().isGreaterOrEqual(dropThreshold)) {
+                    // Keep the last quarter of the byte budget, and of a shared queue,
+                    // for events at or above the threshold. Level lanes give those
+                    // events lanes of their own, so a lane keeps nothing back.
+                    if ((events.isSplit() || queue.remainingCapacity() > queue.capacity() / 4)
+                            && offer(queue, event, size, byteBudget - byteBudget / 4))
+                        return;
+                    droppedBelowLevel.incrementAndGet();
+                    break;
+                }
+                evictAndOffer(queue, event, size, byteBudget);
+                break;
+
+            case DROP_OLDEST:
+                evictAndOffer(queue, event, size, byteBudget);
+                break;
+
+            default:
+                if (offer(queue, event, size, byteBudget))
+                    return;
+                droppedNewest.incrementAndGet();
+                break;
+        }
+    }
+
+    /**
+     * Reserve size bytes of the byte budget and add an event to the queue.
+     *
+     * @param limit The byte budget to respect; zero for none, in which case
+     *              bytes aren't counted at all. An event is always accepted
+     *              into an otherwise empty budget, so a single huge event can't
+     *              be rejected forever. The budget is checked and then taken
+     *              without a lock, so racing producers may each overshoot it
+     *              by an event.
+     * @return False if the queue or the budget is full.
+     */
+    private boolean offer(MpscRingBuffer<QueuedEvent> queue, QueuedEvent event, int size, long limit) {
+        if (limit == 0)
+            return queue.offer(event);
+        long current = queuedBytes.sum();
+        if (current > 0 && current + size > limit)
+            return false;
+        queuedBytes.add(size);
+        if (!queue.offer(event)) {
+            queuedBytes.add(-size);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Give back the budget taken by events leaving the queue.
+     */
+    private void released(long bytes) {
+        if (byteBudget > 0)
+            queuedBytes.add(-bytes);
+    }
+
+    /**
+     * @return The bytes queued now, raising the high-water mark to match.
+     */
+    private long sampleQueuedBytes() {
+        long now = queuedBytes.sum();
+        long high;
+        while (now > (high = queuedBytesHighWater.get()) && !queuedBytesHighWater.compareAndSet(high, now))
+            ;
+        return now;
+    }
+
+    /**
+     * Move up to max queued events into a list without waiting.
+     *
+     * @return The number of events moved.
+     */
+    int drainQueue(List<QueuedEvent> into, int max) {
+        metrics.queueDepth(events.size());
+        int from = into.size();
+        int n = events.drainTo(into, max);
+        if (byteBudget > 0) {
+            sampleQueuedBytes();
+            long bytes = 0;
+            for (int i = from; i < into.size(); i++)
+                bytes += into.get(i).estimatedSize();
+            released(bytes);
+        }
+        return n;
+    }
+
+    /**
+     * Take the next queued event, waiting up to the timeout for one.
+     *
+     * @return The event, or null if none arrived in time.
+     */
+    QueuedEvent pollQueue(long timeout, TimeUnit unit) throws InterruptedException {
+        QueuedEvent event = events.poll(timeout, unit);
+        if (event != null)
+            released(event.estimatedSize());
+        return event;
+    }
+
+    /**
+     * Count events as written or discarded, waking anyone waiting for the
+     * queue to drain.
+     */
+    void completed(long n) {
+        completed.addAndGet(n);
+        if (drainWaiters.get() > 0) {
+            synchronized (drainLock) {
+                drainLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait up to JOIN_MILLIS for a transport thread to finish.
+     */
+    void join(Thread thread) {
+        if (thread == null)
+            return;
+        try {
+            thread.join(JOIN_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive())
+            addWarn(thread.getName() + " is still running after " + JOIN_MILLIS + " ms");
+    }
+
+    /**
+     * @return Whichever of two {@link System#nanoTime()} readings came first.
+     */
+    static long earlier(long a, long b) {
+        return a - b < 0 ? a : b;
+    }
+
+    /**
+     * Encode a queued event for sending, recording its encode time and how
+     * long it waited in the queue. An event that can't be encoded is counted
+     * as dropped, and whatever it wrote is taken back out.
+     *
+     * @return False if the event couldn't be encoded.
+     */
+    boolean encode(QueuedEvent event, GELFCodec codec, ByteBuffersOutputStream out) {
+        long start = out.size();
+        try {
+            metrics.encode(event, codec, out);
+            return true;
+        } catch (RuntimeException e) {
+            debug(e, "failed to encode event %s", event);
+            out.truncate(start);
+            metrics.encodeFailures.increment();
+            return false;
+        }
+    }
+
+    public void setGelfPort(int port) {
+        debug("setting port to %d", port);
+        this.port = port;
+        targetChanged();
+    }
+
+    public void setGelfHost(String host) {
+        debug("setting host to %s", host);
+        this.host = host;
+        targetChanged();
+    }
+
+    public void setLocalHost(String host) {
+        debug("setting local host: %s", host);
+        this.localhost = host;
+        if (isStarted.get()) {
+            rebuildCodec();
+        }
+    }
+
+    public void setIncludeCallerData(boolean includeCallerData) {
+        debug("setting include caller data: %s", includeCallerData);
+        this.includeCallerData = includeCallerData;
+        if (isStarted.get()) {
+            rebuildCodec();
+        }
+    }
+
+    public void setIncludeStackTrace(boolean includeStackTrace) {
+        debug("setting include stack trace: %s", includeStackTrace);
+        this.includeStackTrace = includeStackTrace;
+        if (isStarted.get()) {
+            rebuildCodec();
+        }
+    }
+
+    /**
+     * Send MDC entries as additional fields, named with a leading underscore.
+     * Static fields win over MDC entries of the same name, and an MDC entry
+     * named "id" is left out, since GELF reserves _id.
+     */
+    public void setIncludeMdc(boolean includeMdc) {
+        debug("setting include MDC: %s", includeMdc);
+        this.includeMdc = includeMdc;
+        if (isStarted.get()) {
+            rebuildCodec();
+        }
+    }
+
+    /**
+     * A comma-separated list of the only MDC keys to send; empty to send all.
+     */
+    public void setMdcIncludes(String mdcIncludes) {
+        debug("setting MDC includes: %s", mdcIncludes);
+        this.mdcIncludes = parseKeys(mdcIncludes);
+        if (isStarted.get()) {
+            rebuildCodec();
+        }
+    }
+
+    /**
+     * A comma-separated list of MDC keys not to send.
+     */
+    public void setMdcExcludes(String mdcExcludes) {
+        debug("setting MDC excludes: %s", mdcExcludes);
+        this.mdcExcludes = parseKeys(mdcExcludes);
+        if (isStarted.get()) {
+            rebuildCodec();
+        }
+    }
+
+    /**
+     * Send the name of the event's marker, if it has one, as the _marker field.
+     */
+    public void setIncludeMarker(boolean includeMarker) {
+        debug("setting include marker: %s", includeMarker);
+        this.includeMarker = includeMarker;
+        if (isStarted.get()) {
+            rebuildCodec();
+        }
+    }
+
+    /**
+     * Send the timestamp as a number with millisecond precision. Turn this off
+     * to send a string of whole seconds, as older versions did.
+     */
+    public void setNumericTimestamp(boolean numericTimestamp) {
+        debug("setting numeric timestamp: %s", numericTimestamp);
+        this.numericTimestamp = numericTimestamp;
+        if (isStarted.get()) {
+            rebuildCodec();
+        }
+    }
+
+    private static Set<String> parseKeys(String keys) {
+        Set<String> ret = new LinkedHashSet<String>();
+        for (String key : keys.split(",")) {
+            key = key.trim();
+            if (key.length() > 0)
+                ret.add(key);
+        }
+        return ret;
+    }
+
+    public void setTtlSeconds(int ttlSeconds) {
+        debug("setting ttlSeconds: %s", ttlSeconds);
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * The maximum number of events held in memory waiting to be sent, rounded up
+     * to a power of two. Takes effect at start.
+     */
+    public void setQueueSize(int queueSize) {
+        debug("setting queueSize: %s", queueSize);
+        if (queueSize <= 0)
+            throw new IllegalArgumentException("queueSize must be positive");
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Queue events in a separate lane per level (error, warning, info and
+     * debug), each with its own capacity, so floods at one level can't evict
+     * or crowd out events at another, and take them out by weighted round
+     * robin. Under {@link OverflowPolicy#DROP_BELOW_LEVEL}, events below the
+     * threshold may then fill their own lanes, since they can't take room
+     * from higher levels; only the quarter of the byte budget is still kept
+     * back. Takes effect at start.
+     */
+    public void setLevelLanes(boolean levelLanes) {
+        debug("setting levelLanes: %s", levelLanes);
+        this.levelLanes = levelLanes;
+    }
+
+    /**
+     * The capacity of each level lane, as comma-separated level=size pairs,
+     * such as "error=256,debug=4096". Lanes not listed get queueSize. Takes
+     * effect at start.
+     */
+    public void setLaneQueueSizes(String laneQueueSizes) {
+        debug("setting laneQueueSizes: %s", laneQueueSizes);
+        this.laneQueueSizes = parseLanes(laneQueueSizes, "laneQueueSizes", null);
+    }
+
+    /**
+     * How many events to take from each level lane per turn, as comma-separated
+     * level=weight pairs; "error=8,warn=4,info=2,debug=1" by default. Takes
+     * effect at start.
+     */
+    public void setLaneWeights(String laneWeights) {
+        debug("setting laneWeights: %s", laneWeights);
+        this.laneWeights = parseLanes(laneWeights, "laneWeights", this.laneWeights.clone());
+    }
+
+    private int[] laneQueueSizes() {
+        int[] sizes = new int[LevelLanes.LANES];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = laneQueueSizes != null && laneQueueSizes[i] > 0 ? laneQueueSizes[i] : queueSize;
+        return sizes;
+    }
+
+    /**
+     * Parse level=value pairs into an array indexed by lane, starting from
+     * defaults, or zeros if defaults is null.
+     */
+    private static int[] parseLanes(String spec, String name, int[] defaults) {
+        int[] ret = defaults != null ? defaults : new int[LevelLanes.LANES];
+        Matcher matcher = keyValuePattern.matcher(spec);
+        while (matcher.find()) {
+            Level level = Level.toLevel(matcher.group("key").trim(), null);
+            if (level == null)
+                throw new IllegalArgumentException(name + ": unknown level " + matcher.group("key"));
+            int value;
+            try {
+                value = Integer.parseInt(matcher.group("value").trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(name + ": not a number: " + matcher.group("value"));
+            }
+            if (value <= 0)
+                throw new IllegalArgumentException(name + " must be positive");
+            ret[LevelLanes.laneOf(level)] = value;
+        }
+        return ret;
+    }
+
+    /**
+     * How the sender thread waits for events when the queue is empty; one of the
+     * {@link WaitStrategy} names. Takes effect at start.
+     */
+    public void setWaitStrategy(String waitStrategy) {
+        debug("setting waitStrategy: %s", waitStrategy);
+        this.waitStrategy = WaitStrategy.valueOf(waitStrategy.trim().toUpperCase());
+    }
+
+    /**
+     * The maximum estimated size, in bytes, of all queued events; zero (the
+     * default) for no limit beyond queueSize. An event that would exceed the
+     * budget is handled by the overflow policy, just as if the queue were full.
+     * Takes effect at start.
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        debug("setting maxQueuedBytes: %s", maxQueuedBytes);
+        if (maxQueuedBytes < 0)
+            throw new IllegalArgumentException("maxQueuedBytes must not be negative");
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * What to do when the queue is full; one of the {@link OverflowPolicy} names.
+     */
+    public void setOverflowPolicy(String overflowPolicy) {
+        debug("setting overflowPolicy: %s", overflowPolicy);
+        this.overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase());
+    }
+
+    /**
+     * How long {@link OverflowPolicy#BLOCK} waits for room in the queue.
+     */
+    public void setBlockTimeoutMillis(long blockTimeoutMillis) {
+        debug("setting blockTimeoutMillis: %s", blockTimeoutMillis);
+        if (blockTimeoutMillis < 0)
+            throw new IllegalArgumentException("blockTimeoutMillis must not be negative");
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    /**
+     * The level below which {@link OverflowPolicy#DROP_BELOW_LEVEL} drops events.
+     */
+    public void setDropThreshold(String level) {
+        debug("setting dropThreshold: %s", level);
+        this.dropThreshold = Level.toLevel(level, Level.WARN);
+    }
+
+    /**
+     * How many events with the same logger, level and message template to send
+     * in each rate limit window; zero (the default) for no limit. Takes effect
+     * at start.
+     */
+    public void setRateLimitEvents(int rateLimitEvents) {
+        debug("setting rateLimitEvents: %s", rateLimitEvents);
+        if (rateLimitEvents < 0)
+            throw new IllegalArgumentException("rateLimitEvents must not be negative");
+        this.rateLimitEvents = rateLimitEvents;
+    }
+
+    /**
+     * The length of a rate limit window. Takes effect at start.
+     */
+    public void setRateLimitWindowMillis(long rateLimitWindowMillis) {
+        debug("setting rateLimitWindowMillis: %s", rateLimitWindowMillis);
+        if (rateLimitWindowMillis <= 0)
+            throw new IllegalArgumentException("rateLimitWindowMillis must be positive");
+        this.rateLimitWindowMillis = rateLimitWindowMillis;
+    }
+
+    /**
+     * How long stop() waits for queued events to be sent before abandoning
+     * them; zero abandons them right away.
+     */
+    public void setStopTimeoutMillis(long stopTimeoutMillis) {
+        debug("setting stopTimeoutMillis: %s", stopTimeoutMillis);
+        if (stopTimeoutMillis < 0)
+            throw new IllegalArgumentException("stopTimeoutMillis must not be negative");
+        this.stopTimeoutMillis = stopTimeoutMillis;
+    }
+
+    /**
+     * Register the appender as a {@link GELFAppenderMXBean} while it is started;
+     * on by default. Takes effect at start.
+     */
+    public void setJmx(boolean jmx) {
+        debug("setting jmx: %s", jmx);
+        this.jmx = jmx;
+    }
+
+    /**
+     * Encode events on the logging thread, queueing only the encoded bytes.
+     * The queue then holds no references to event arguments or MDC maps, and
+     * the sender thread only does I/O.
+     */
+    public void setEagerEncoding(boolean eagerEncoding) {
+        debug("setting eager encoding: %s", eagerEncoding);
+        this.eagerEncoding = eagerEncoding;
+    }
+
+    /**
+     * Encode into direct buffers rather than heap buffers, saving the copy
+     * the JDK makes when writing heap buffers to a socket. Takes effect at start.
+     */
+    public void setDirectBuffers(boolean directBuffers) {
+        debug("setting direct buffers: %s", directBuffers);
+        this.directBuffers = directBuffers;
+    }
+
+    /**
+     * How to compress messages; one of the {@link GELFCompression} names.
+     * Ignored by {@link GELFTCPAppender}, since GELF over TCP can't carry
+     * compressed messages. Takes effect at start.
+     */
+    public void setCompression(String compression) {
+        debug("setting compression: %s", compression);
+        this.compression = GELFCompression.valueOf(compression.trim().toUpperCase());
+    }
+
+    /**
+     * The deflate level, from 1 (fastest) to 9 (smallest), or -1 for the
+     * default. Takes effect at start.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        debug("setting compressionLevel: %s", compressionLevel);
+        if (compressionLevel < -1 || compressionLevel > 9)
+            throw new IllegalArgumentException("compressionLevel must be between -1 and 9");
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Messages smaller than this many bytes are sent uncompressed, since
+     * compressing short lines costs more CPU than it saves bandwidth.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        debug("setting compressionThreshold: %s", compressionThreshold);
+        if (compressionThreshold < 0)
+            throw new IllegalArgumentException("compressionThreshold must not be negative");
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @return A compressor for a sender thread, or null if compression is off.
+     */
+    GELFCompressor newCompressor() {
+        return compression == GELFCompression.NONE ? null : new GELFCompressor(compression, compressionLevel);
+    }
+
+    public void setStaticFields(String staticFields) {
+        debug("setting static fields: %s", staticFields);
+        Matcher matcher = keyValuePattern.matcher(staticFields);
+        Map<String, String> kvs = new LinkedHashMap<String, String>();
+        while (matcher.find()) {
+            kvs.put(matcher.group("key"), matcher.group("value"));
+        }
+        this.staticFields = kvs;
+        debug("static fields: %s", kvs);
+        if (isStarted.get()) {
+            rebuildCodec();
+        }
+    }
+
+    static void debug(String fmt, Object... args) {
+        if (debugging) {
+            System.err.println(String.format(fmt, args));
+        }
+    }
+
+    static void debug(Throwable t, String fmt, Object... args) {
+        debug(fmt, args);
+        if (debugging) {
+            t.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * @return How many stack traces were sent from the cache of rendered traces,
+     *   since the codec was last rebuilt.
+     */
+    public long getStackTraceCacheHits() {
+        GELFCodec codec = codec();
+        return codec != null ? codec.stackTraceCacheHits() : 0;
+    }
+
+    /**
+     * @return How many stack traces had to be rendered, since the codec was last rebuilt.
+     */
+    public long getStackTraceCacheMisses() {
+        GELFCodec codec = codec();
+        return codec != null ? codec.stackTraceCacheMisses() : 0;
+    }
+
+    public int getQueueDepthHighWaterMark() {
+        return metrics.queueDepthHighWater();
+    }
+
+    /**
+     * @return The number of events queued since the appender started,
+     *   including any later dropped to make room.
+     */
+    public long getEnqueuedCount() {
+        return events.producedCount();
+    }
+
+    /**
+     * @return The number of events written to the network.
+     */
+    public long getSentCount() {
+        return metrics.sent.sum();
+    }
+
+    public long getBytesWritten() {
+        return metrics.bytesWritten.sum();
+    }
+
+    public long getPartialWriteCount() {
+        return metrics.partialWrites.sum();
+    }
+
+    public long getReconnectCount() {
+        return metrics.reconnects.sum();
+    }
+
+    public long getConnectFailureCount() {
+        return metrics.connectFailures.sum();
+    }
+
+    public long getEncodeNanosP50() {
+        return metrics.encodeNanos.percentile(50);
+    }
+
+    public long getEncodeNanosP99() {
+        return metrics.encodeNanos.percentile(99);
+    }
+
+    public long getEncodeNanosP999() {
+        return metrics.encodeNanos.percentile(99.9);
+    }
+
+    public long getEncodeNanosMax() {
+        return metrics.encodeNanos.max();
+    }
+
+    public long getQueueWaitMicrosP50() {
+        return TimeUnit.NANOSECONDS.toMicros(metrics.queueWaitNanos.percentile(50));
+    }
+
+    public long getQueueWaitMicrosP99() {
+        return TimeUnit.NANOSECONDS.toMicros(metrics.queueWaitNanos.percentile(99));
+    }
+
+    public long getQueueWaitMicrosP999() {
+        return TimeUnit.NANOSECONDS.toMicros(metrics.queueWaitNanos.percentile(99.9));
+    }
+
+    public long getQueueWaitMicrosMax() {
+        return TimeUnit.NANOSECONDS.toMicros(metrics.queueWaitNanos.max());
+    }
+
+    public long getSendLatencyMicrosP50() {
+        return TimeUnit.NANOSECONDS.toMicros(metrics.sendLatencyNanos.percentile(50));
+    }
+
+    public long getSendLatencyMicrosP99() {
+        return TimeUnit.NANOSECONDS.toMicros(metrics.sendLatencyNanos.percentile(99));
+    }
+
+    public long getSendLatencyMicrosP999() {
+        return TimeUnit.NANOSECONDS.toMicros(metrics.sendLatencyNanos.percentile(99.9));
+    }
+
+    public long getSendLatencyMicrosMax() {
+        return TimeUnit.NANOSECONDS.toMicros(metrics.sendLatencyNanos.max());
+    }
+
+    /**
+     * @return The number of events held back by the rate limit.
+     */
+    public long getSuppressedCount() {
+        return suppressed.get();
+    }
+
+    /**
+     * @return The number of events currently queued.
+     */
+    public int getQueueDepth() {
+        return events.size();
+    }
+
+    /**
+     * @return The number of events queued in the error lane; zero without levelLanes.
+     */
+    public int getErrorLaneDepth() {
+        return events.depth(LevelLanes.ERROR);
+    }
+
+    /**
+     * @return The number of events queued in the warning lane; zero without levelLanes.
+     */
+    public int getWarnLaneDepth() {
+        return events.depth(LevelLanes.WARN);
+    }
+
+    /**
+     * @return The number of events queued in the info lane; zero without levelLanes.
+     */
+    public int getInfoLaneDepth() {
+        return events.depth(LevelLanes.INFO);
+    }
+
+    /**
+     * @return The number of events queued in the debug lane, which also holds
+     *   trace events; zero without levelLanes.
+     */
+    public int getDebugLaneDepth() {
+        return events.depth(LevelLanes.DEBUG);
+    }
+
+    /**
+     * @return The estimated size, in bytes, of the events currently queued;
+     *   always zero without maxQueuedBytes, as nothing is counted then.
+     */
+    public long getQueuedBytes() {
+        return sampleQueuedBytes();
+    }
+
+    /**
+     * @return The largest value {@link #getQueuedBytes()} has been seen at,
+     *   by the sender or a caller of either getter.
+     */
+    public long getQueuedBytesHighWaterMark() {
+        sampleQueuedBytes();
+        return queuedBytesHighWater.get();
+    }
+
+    /**
+     * @return The number of new events dropped because the queue was full.
+     */
+    public long getDroppedNewestCount() {
+        return droppedNewest.get();
+    }
+
+    /**
+     * @return The number of queued events evicted to make room for newer ones.
+     */
+    public long getDroppedOldestCount() {
+        return droppedOldest.get();
+    }
+
+    /**
+     * @return The number of events dropped after blocking for the block timeout.
+     */
+    public long getDroppedOnTimeoutCount() {
+        return droppedOnTimeout.get();
+    }
+
+    /**
+     * @return The number of events dropped for being below the drop threshold.
+     */
+    public long getDroppedBelowLevelCount() {
+        return droppedBelowLevel.get();
+    }
+
+    /**
+     * @return The number of events dropped because they couldn't be encoded.
+     */
+    public long getEncodeFailureCount() {
+        return metrics.encodeFailures.sum();
+    }
+
+    /**
+     * @return The total number of events dropped because the queue was full,
+     *   or because they couldn't be encoded.
+     */
+    public long getDroppedCount() {
+        return droppedNewest.get() + droppedOldest.get() + droppedOnTimeout.get() + droppedBelowLevel.get()
+                + metrics.encodeFailures.sum();
+    }
+
+    /**
+     * @return The number of events taken off the queue but not yet written or discarded.
+     */
+    public long getInflightCount() {
+        return events.consumedCount() - completed.get();
+    }
+
+    /**
+     * @return The number of events still queued or in flight when stop() ran
+     *   out of time, and so never sent.
+     */
+    public long getAbandonedCount() {
+        return abandoned.get();
+    }
+
+    /**
+     * @return True if every queued event has been written or discarded, and
+     *   the transport has no backlog.
+     */
+    public boolean isDrained() {
+        return isFlushed() && !hasBacklog();
+    }
+
+    /**
+     * @return True if the transport holds events outside the queue, such as
+     *   spilled to disk, that are still to be sent. False by default.
+     */
+    protected boolean hasBacklog() {
+        return false;
+    }
+
+    /**
+     * @return True if every queued event has been written or discarded.
+     */
+    private boolean isFlushed() {
+        LevelLanes queue = events;
+        return queue.producedCount() == queue.consumedCount() && queue.consumedCount() == completed.get();
+    }
+
+    /**
+     * Wait until {@link #isDrained()}.
+     *
+     * @return False if the timeout ran out first.
+     */
+    public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+        return await(unit.toNanos(timeout), true);
+    }
+
+    /**
+     * Wait until every queued event has been written or discarded.
+     *
+     * @param backlog Also wait until there's no {@link #hasBacklog() backlog};
+     *   stop() doesn't, since a backlog on disk outlives the appender.
+     * @return False if the timeout ran out first.
+     */
+    private boolean await(long timeoutNanos, boolean backlog) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        drainWaiters.incrementAndGet();
+        try {
+            synchronized (drainLock) {
+                while (!isFlushed() || (backlog && hasBacklog())) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        return false;
+                    TimeUnit.NANOSECONDS.timedWait(drainLock, remaining);
+                }
+                return true;
+            }
+        } finally {
+            drainWaiters.decrementAndGet();
+        }
+    }
+}
@@ -3,68 +3,281 @@ package org.metastatic.gelfback;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
 
 /**
+ * An output stream that writes into a list of fixed-size byte buffers ("slabs"),
+ * suitable for a gathering write.
+ *
+ * Streams may be reused: {@link #reset()} discards the contents and keeps the
+ * initial slabs, so a long-lived stream allocates nothing in steady state. If
+ * the stream was created with a {@link SlabPool}, slabs are taken from and
+ * returned to the pool.
  */
 public class ByteBuffersOutputStream extends OutputStream {
-    private final LinkedList<ByteBuffer> buffers;
+    private final SlabPool pool;
     private final int slabSize;
+    private final int retainedSlabs;
+    private ByteBuffer[] buffers;
+    private int count;
+    private ByteBuffer last;
+    private boolean flipped;
 
     public ByteBuffersOutputStream(int slabSize, int initialCapacity) {
+        this(null, slabSize, initialCapacity);
+    }
+
+    public ByteBuffersOutputStream(int slabSize) {
+        this(slabSize, slabSize);
+    }
+
+    public ByteBuffersOutputStream() {
+        this(4096);
+    }
+
+    /**
+     * Create a stream whose slabs come from a pool.
+     *
+     * @param pool The slab pool.
+     */
+    public ByteBuffersOutputStream(SlabPool pool) {
+        this(pool, pool.slabSize(), pool.slabSize());
+    }
+
+    private ByteBuffersOutputStream(SlabPool pool, int slabSize, int initialCapacity) {
         if (slabSize <= 0)
             throw new IllegalArgumentException("slabSize must be positive");
         if (initialCapacity <= 0)
             throw new IllegalArgumentException("initialCapacity must be positive");
-        buffers = new LinkedList<ByteBuffer>();
-        for (int i = 0; i < initialCapacity; i += slabSize) {
-            buffers.add(ByteBuffer.allocate(slabSize));
-        }
+        this.pool = pool;
         this.slabSize = slabSize;
+        this.retainedSlabs = (initialCapacity + slabSize - 1) / slabSize;
+        buffers = new ByteBuffer[Math.max(4, retainedSlabs)];
+        for (int i = 0; i < retainedSlabs; i++) {
+            extend();
+        }
     }
 
-    public ByteBuffersOutputStream(int slabSize) {
-        this(slabSize, slabSize);
+    private ByteBuffersOutputStream(ByteBuffersOutputStream from) {
+        this.pool = from.pool;
+        this.slabSize = from.slabSize;
+        this.retainedSlabs = 0;
+        this.buffers = Arrays.copyOf(from.buffers, Math.max(4, from.count));
+        this.count = from.count;
+        this.last = from.last;
+        this.flipped = from.flipped;
     }
 
-    public ByteBuffersOutputStream() {
-        this(4096);
+    /**
+     * Move the contents of this stream into a new stream without copying,
+     * leaving this one empty and ready for writing. The new stream keeps no
+     * slabs across a reset, and closing it returns its slabs to the pool.
+     *
+     * @return A stream holding what this stream held.
+     */
+    public ByteBuffersOutputStream detach() {
+        ByteBuffersOutputStream ret = new ByteBuffersOutputStream(this);
+        Arrays.fill(buffers, 0, count, null);
+        count = 0;
+        last = null;
+        flipped = false;
+        for (int i = 0; i < retainedSlabs; i++)
+            extend();
+        return ret;
     }
 
     /**
      * Return a view of the current buffer contents, prepared for reading.
+     * The returned buffers are independent read-only views; the stream can
+     * still be written to afterwards.
      *
      * @return An array of buffers
      */
     public ByteBuffer[] toBuffers() {
-        ByteBuffer[] ret = buffers.toArray(new ByteBuffer[buffers.size()]);
-        for (int i = 0; i < ret.length; i++) {
-            ByteBuffer b = ret[i];
-            ret[i] = ((ByteBuffer) b.flip()).slice().asReadOnlyBuffer();
+        ByteBuffer[] ret = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            ByteBuffer b = buffers[i].asReadOnlyBuffer();
+            if (!flipped)
+                b.flip();
+            ret[i] = b;
         }
         return ret;
     }
 
+    /**
+     * Flip the slabs in place for reading, without copying or allocating. Only
+     * the first {@link #slabCount()} elements of the returned array are valid.
+     * The stream must be {@link #reset()} before it is written to again.
+     *
+     * @return The internal array of slabs.
+     */
+    public ByteBuffer[] readableBuffers() {
+        if (!flipped) {
+            for (int i = 0; i < count; i++)
+                buffers[i].flip();
+            flipped = true;
+        }
+        return buffers;
+    }
+
+    /**
+     * Make the entire contents readable again after a partial read or write of
+     * the buffers returned by {@link #readableBuffers()}.
+     */
+    public void rewind() {
+        readableBuffers();
+        for (int i = 0; i < count; i++)
+            buffers[i].rewind();
+    }
+
+    /**
+     * Write the entire contents of this stream to a channel, then reset it.
+     *
+     * @param channel The channel.
+     * @return The number of bytes written.
+     * @throws IOException If the write fails; the stream is left flipped, with
+     *   whatever was not yet written still remaining.
+     */
+    public long drainTo(GatheringByteChannel channel) throws IOException {
+        ByteBuffer[] b = readableBuffers();
+        long total = 0;
+        int first = 0;
+        while (first < count) {
+            if (!b[first].hasRemaining()) {
+                first++;
+                continue;
+            }
+            total += channel.write(b, first, count - first);
+        }
+        reset();
+        return total;
+    }
+
+    /**
+     * Write as much of the contents of this stream as a channel takes without
+     * blocking, and reset the stream once everything has been written. For
+     * non-blocking channels: call again once the channel is writable.
+     *
+     * @param channel The channel.
+     * @return True if everything has been written.
+     */
+    public boolean writeTo(GatheringByteChannel channel) throws IOException {
+        ByteBuffer[] b = readableBuffers();
+        int first = 0;
+        while (true) {
+            while (first < count && !b[first].hasRemaining())
+                first++;
+            if (first == count)
+                break;
+            if (channel.write(b, first, count - first) == 0)
+                return false;
+        }
+        reset();
+        return true;
+    }
+
+    /**
+     * @return The number of slabs holding data.
+     */
+    public int slabCount() {
+        return count;
+    }
+
+    /**
+     * @return The number of bytes written since the last reset.
+     */
+    public long size() {
+        long size = 0;
+        for (int i = 0; i < count; i++)
+            size += flipped ? buffers[i].limit() : buffers[i].position();
+        return size;
+    }
+
+    /**
+     * Discard everything written after the first size bytes, so the next write
+     * carries on from there. Slabs left empty go back to the pool. The stream
+     * must not have been flipped for reading.
+     *
+     * @param size The number of bytes to keep.
+     */
+    public void truncate(long size) {
+        if (flipped)
+            throw new IllegalStateException("stream has been flipped for reading");
+        long n = 0;
+        for (int i = 0; i < count; i++) {
+            int p = buffers[i].position();
+            if (n + p >= size) {
+                buffers[i].position((int) (size - n));
+                for (int j = i + 1; j < count; j++) {
+                    if (pool != null)
+                        pool.release(buffers[j]);
+                    buffers[j] = null;
+                }
+                count = i + 1;
+                last = buffers[i];
+                return;
+            }
+            n += p;
+        }
+    }
+
+    /**
+     * Discard the contents of this stream. The initial slabs are kept for reuse;
+     * any extra slabs are returned to the pool, if there is one.
+     */
+    public void reset() {
+        for (int i = retainedSlabs; i < count; i++) {
+            if (pool != null)
+                pool.release(buffers[i]);
+            buffers[i] = null;
+        }
+        count = Math.min(count, retainedSlabs);
+        for (int i = 0; i < count; i++)
+            buffers[i].clear();
+        last = count > 0 ? buffers[count - 1] : null;
+        flipped = false;
+    }
+
+    /**
+     * Discard the contents and return every slab to the pool. The stream
+     * must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < count; i++) {
+            if (pool != null)
+                pool.release(buffers[i]);
+            buffers[i] = null;
+        }
+        count = 0;
+        last = null;
+    }
+
     private void extend() {
-        buffers.add(ByteBuffer.allocate(slabSize));
+        if (count == buffers.length)
+            buffers = Arrays.copyOf(buffers, count << 1);
+        last = pool != null ? pool.acquire() : ByteBuffer.allocate(slabSize);
+        buffers[count++] = last;
     }
 
     @Override
     public void write(int b) {
-        write(new byte[] { (byte) b });
+        if (last == null || !last.hasRemaining())
+            extend();
+        last.put((byte) b);
     }
 
     @Override
     public void write(byte[] b, int offset, int length) {
         int n = 0;
         while (n < length) {
-            int w = Math.min(length - n, buffers.getLast().remaining());
+            int w = last == null ? 0 : Math.min(length - n, last.remaining());
             if (w == 0) {
                 extend();
                 continue;
             }
-            buffers.getLast().put(b, offset + n, w);
+            last.put(b, offset + n, w);
             n += w;
         }
     }
@@ -73,4 +286,18 @@ public class ByteBuffersOutputStream extends OutputStream {
     public void write(byte[] b) {
         write(b, 0, b.length);
     }
+
+    /**
+     * Write the remaining bytes of a buffer, consuming them.
+     */
+    public void write(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            if (last == null || !last.hasRemaining())
+                extend();
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + Math.min(src.remaining(), last.remaining()));
+            last.put(slice);
+            src.position(slice.position());
+        }
+    }
 }
@@ -0,0 +1,50 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An event encoded to framed GELF bytes on the thread that logged it. Holds
+ * only the bytes, not the original event and its arguments and MDC.
+ */
+final class EncodedEvent implements QueuedEvent {
+    // Object headers and fields of this object and its array.
+    private static final int OVERHEAD = 48;
+
+    private final Level level;
+    private final String threadName;
+    private final byte[] frame;
+    private final long enqueuedNanos = System.nanoTime();
+
+    EncodedEvent(Level level, String threadName, byte[] frame) {
+        this.level = level;
+        this.threadName = threadName;
+        this.frame = frame;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public int estimatedSize() {
+        return OVERHEAD + frame.length;
+    }
+
+    public long enqueuedNanos() {
+        return enqueuedNanos;
+    }
+
+    public void writeFramed(GELFCodec codec, OutputStream out) {
+        try {
+            out.write(frame);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
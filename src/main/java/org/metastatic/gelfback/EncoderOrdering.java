@@ -0,0 +1,17 @@
+package org.metastatic.gelfback;
+
+/**
+ * The ordering guarantee kept when events are encoded by several encoder threads.
+ */
+public enum EncoderOrdering {
+    /**
+     * Events are sent in exactly the order they were queued.
+     */
+    GLOBAL,
+
+    /**
+     * Events from the same logging thread are sent in order; events from
+     * different threads may be reordered within a batch.
+     */
+    PER_THREAD
+}
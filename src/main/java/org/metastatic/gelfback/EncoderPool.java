@@ -0,0 +1,154 @@
+package org.metastatic.gelfback;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of encoder threads that turn a batch of events into framed
+ * GELF bytes in parallel, leaving the sender thread to do only I/O.
+ *
+ * A batch is split into one chunk per thread. With {@link EncoderOrdering#GLOBAL}
+ * the chunks are contiguous runs of the batch and are handed to the sink in
+ * order; with {@link EncoderOrdering#PER_THREAD} events are split by logging
+ * thread and each chunk is handed over as soon as it is encoded.
+ */
+final class EncoderPool {
+    interface Sink {
+        /**
+         * Take an encoded chunk. The sink may keep the chunk's contents by
+         * {@link ByteBuffersOutputStream#detach() detaching} them.
+         *
+         * @param events The number of events in the chunk.
+         */
+        void write(ByteBuffersOutputStream chunk, int events) throws IOException, InterruptedException;
+    }
+
+    private final ExecutorService executor;
+    private final CompletionService<Integer> completion;
+    private final EncoderOrdering ordering;
+    private final List<List<QueuedEvent>> chunks;
+    private final ByteBuffersOutputStream[] outputs;
+    private final List<Future<Integer>> futures;
+    // The number of events each chunk's encoder managed to encode.
+    private final int[] encoded;
+    private final GELFMetrics metrics;
+
+    EncoderPool(int threads, EncoderOrdering ordering, SlabPool slabs, GELFMetrics metrics) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads must be positive");
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GELF-Encoder-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.completion = new ExecutorCompletionService<Integer>(executor);
+        this.ordering = ordering;
+        this.chunks = new ArrayList<List<QueuedEvent>>(threads);
+        this.outputs = new ByteBuffersOutputStream[threads];
+        for (int i = 0; i < threads; i++) {
+            chunks.add(new ArrayList<QueuedEvent>());
+            outputs[i] = new ByteBuffersOutputStream(slabs);
+        }
+        this.futures = new ArrayList<Future<Integer>>(threads);
+        this.encoded = new int[threads];
+        this.metrics = metrics;
+    }
+
+    /**
+     * Encode a batch and hand each encoded chunk to a sink, with the number of
+     * events encoded into it; events that can't be encoded are left out and
+     * counted in the metrics. Returns once every chunk has been written. Only
+     * one thread may call this at a time.
+     */
+    void encode(List<QueuedEvent> batch, final GELFCodec codec, Sink sink)
+            throws IOException, InterruptedException {
+        split(batch);
+        futures.clear();
+        for (int i = 0; i < chunks.size(); i++) {
+            final int index = i;
+            final List<QueuedEvent> chunk = chunks.get(i);
+            if (chunk.isEmpty())
+                continue;
+            final ByteBuffersOutputStream out = outputs[i];
+            out.reset();
+            futures.add(completion.submit(new Callable<Integer>() {
+                public Integer call() {
+                    int n = 0;
+                    for (QueuedEvent event : chunk) {
+                        long start = out.size();
+                        try {
+                            metrics.encode(event, codec, out);
+                            n++;
+                        } catch (RuntimeException e) {
+                            // Drop events that can't be encoded, as the sender does.
+                            out.truncate(start);
+                            metrics.encodeFailures.increment();
+                        }
+                    }
+                    encoded[index] = n;
+                    return index;
+                }
+            }));
+        }
+        // How many completions have been taken off the completion queue.
+        int taken = 0;
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Future<Integer> f;
+                if (ordering == EncoderOrdering.GLOBAL) {
+                    f = futures.get(i);
+                } else {
+                    f = completion.take();
+                    taken++;
+                }
+                int index = f.get();
+                sink.write(outputs[index], encoded[index]);
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("encoder failed", e.getCause());
+        } finally {
+            // Keep the completion queue empty for the next batch, even if the sink
+            // threw partway through, and wait for every encoder to finish with its
+            // output before it is reused.
+            for (int i = taken; i < futures.size(); i++)
+                completion.take();
+            for (List<QueuedEvent> chunk : chunks)
+                chunk.clear();
+        }
+    }
+
+    private void split(List<QueuedEvent> batch) {
+        int n = chunks.size();
+        if (ordering == EncoderOrdering.GLOBAL) {
+            int per = (batch.size() + n - 1) / n;
+            for (int i = 0; i < batch.size(); i++)
+                chunks.get(i / per).add(batch.get(i));
+        } else {
+            for (QueuedEvent event : batch) {
+                String thread = event.getThreadName();
+                int h = thread != null ? thread.hashCode() & Integer.MAX_VALUE : 0;
+                chunks.get(h % n).add(event);
+            }
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        for (ByteBuffersOutputStream out : outputs)
+            out.close();
+    }
+}
@@ -0,0 +1,81 @@
+package org.metastatic.gelfback;
+
+/**
+ * What a started GELF appender reports over JMX, registered as
+ * org.metastatic.gelfback:type=&lt;appender class&gt;,name=&lt;appender name&gt;.
+ *
+ * Counts and latencies accumulate over the appender's life, except the
+ * enqueued count, which starts again each time the appender starts. Encode
+ * time is how long the codec took per event; queue wait is how long an event
+ * waited from being appended until the sender took it to encode into an
+ * outgoing batch or datagram, and doesn't include the write itself. Send
+ * latency runs from append until the write holding the event finished,
+ * including batching, waiting for a connection and retries; it is recorded
+ * once per batch or datagram, for the oldest event in it.
+ */
+public interface GELFAppenderMXBean {
+    int getQueueDepth();
+
+    /**
+     * @return The deepest the queue has been when the sender looked at it.
+     */
+    int getQueueDepthHighWaterMark();
+
+    int getErrorLaneDepth();
+
+    int getWarnLaneDepth();
+
+    int getInfoLaneDepth();
+
+    int getDebugLaneDepth();
+
+    long getQueuedBytes();
+
+    long getQueuedBytesHighWaterMark();
+
+    long getEnqueuedCount();
+
+    long getSentCount();
+
+    long getDroppedCount();
+
+    long getEncodeFailureCount();
+
+    long getSuppressedCount();
+
+    long getBytesWritten();
+
+    /**
+     * @return How many times a socket took only part of a write, and the
+     *   sender had to wait for it to drain.
+     */
+    long getPartialWriteCount();
+
+    long getReconnectCount();
+
+    long getConnectFailureCount();
+
+    long getEncodeNanosP50();
+
+    long getEncodeNanosP99();
+
+    long getEncodeNanosP999();
+
+    long getEncodeNanosMax();
+
+    long getQueueWaitMicrosP50();
+
+    long getQueueWaitMicrosP99();
+
+    long getQueueWaitMicrosP999();
+
+    long getQueueWaitMicrosMax();
+
+    long getSendLatencyMicrosP50();
+
+    long getSendLatencyMicrosP99();
+
+    long getSendLatencyMicrosP999();
+
+    long getSendLatencyMicrosMax();
+}
@@ -0,0 +1,101 @@
+package org.metastatic.gelfback;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+/**
+ * Sends an encoded GELF message as UDP datagrams, splitting it into GELF
+ * chunks when it doesn't fit in one.
+ *
+ * Each chunk is the magic bytes 0x1e 0x0f, an 8-byte message id, a one-byte
+ * sequence number and a one-byte sequence count, followed by the next run of
+ * the message. Chunks are gathered straight from the slabs the message was
+ * encoded into, so the message is never copied into one array. Not
+ * thread-safe; each sender thread has its own.
+ */
+final class GELFChunker {
+    static final int MAX_CHUNKS = 128;
+    static final int HEADER_SIZE = 12;
+    static final byte MAGIC_0 = 0x1e;
+    static final byte MAGIC_1 = 0x0f;
+
+    private final int maxDatagramSize;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private ByteBuffer[] gather = new ByteBuffer[8];
+    // Where the next chunk starts in the message's slabs.
+    private int slab;
+    private int offset;
+
+    /**
+     * @param maxDatagramSize The largest datagram to send, including the chunk header.
+     */
+    GELFChunker(int maxDatagramSize) {
+        if (maxDatagramSize <= HEADER_SIZE)
+            throw new IllegalArgumentException("maxDatagramSize must be larger than " + HEADER_SIZE);
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    /**
+     * Send the first length bytes held in a run of readable slabs.
+     *
+     * @param channel A connected datagram channel.
+     * @param slabs The slabs, as from {@link ByteBuffersOutputStream#readableBuffers()}.
+     * @param slabCount The number of slabs holding data.
+     * @param length The number of bytes to send.
+     * @param messageId The id shared by the message's chunks.
+     * @return The number of datagrams sent; zero if the message would need
+     *   more than {@link #MAX_CHUNKS} chunks, and was not sent.
+     */
+    int send(DatagramChannel channel, ByteBuffer[] slabs, int slabCount, long length, long messageId) throws IOException {
+        slab = 0;
+        offset = 0;
+        if (length <= maxDatagramSize) {
+            int n = slice(slabs, slabCount, (int) length, 0);
+            channel.write(gather, 0, n);
+            return 1;
+        }
+        int payload = maxDatagramSize - HEADER_SIZE;
+        long count = (length + payload - 1) / payload;
+        if (count > MAX_CHUNKS)
+            return 0;
+        for (int seq = 0; seq < count; seq++) {
+            header.clear();
+            header.put(MAGIC_0).put(MAGIC_1).putLong(messageId).put((byte) seq).put((byte) count);
+            header.flip();
+            gather[0] = header;
+            int n = slice(slabs, slabCount, (int) Math.min(payload, length - (long) seq * payload), 1);
+            channel.write(gather, 0, n);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Fill gather, from index at, with views of the next length bytes of the slabs.
+     *
+     * @return The number of buffers in gather to write.
+     */
+    private int slice(ByteBuffer[] slabs, int slabCount, int length, int at) {
+        int n = at;
+        while (length > 0 && slab < slabCount) {
+            ByteBuffer s = slabs[slab];
+            int available = s.limit() - offset;
+            if (available == 0) {
+                slab++;
+                offset = 0;
+                continue;
+            }
+            int take = Math.min(available, length);
+            ByteBuffer view = s.duplicate();
+            view.position(offset);
+            view.limit(offset + take);
+            if (n == gather.length)
+                gather = Arrays.copyOf(gather, n << 1);
+            gather[n++] = view;
+            offset += take;
+            length -= take;
+        }
+        return n;
+    }
+}
@@ -5,26 +5,204 @@ import ch.qos.logback.classic.pattern.ExtendedThrowableProxyConverter;
 import ch.qos.logback.classic.pattern.ThrowableProxyConverter;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
+import org.slf4j.Marker;
 
 import java.io.*;
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Generic GELF codec; turns log messages into JSON bytes.
+ *
+ * MDC entries, static fields and extra fields are sent with a leading
+ * underscore. A static field wins over an MDC entry of the same name, fields
+ * with null values are left out, and a field named "id" is never sent, since
+ * GELF reserves _id.
  */
 public class GELFCodec {
     public static final String GELF_VERSION = "1.1";
     private static final BigDecimal TIMESTAMP_DIVISOR = BigDecimal.valueOf(1000);
 
+    private static final byte[] VERSION_FIELD = ascii("{\"version\":\"" + GELF_VERSION + "\",");
+    private static final byte[] LEVEL_KEY = key("level");
+    private static final byte[] HOST_KEY = key("host");
+    private static final byte[] FULL_MESSAGE_KEY = key("full_message");
+    private static final byte[] SHORT_MESSAGE_KEY = key("short_message");
+    private static final byte[] STACK_TRACE_KEY = key("_stack_trace");
+    private static final byte[] EXCEPTION_KEY = key("_exception");
+    private static final byte[] EXCEPTION_SEPARATOR = ascii(": ");
+    private static final byte[] TIMESTAMP_KEY = key("timestamp");
+    private static final byte[] LOGGER_KEY = key("_logger");
+    private static final byte[] THREAD_KEY = key("_thread");
+    private static final byte[] FILE_KEY = key("_file");
+    private static final byte[] LINE_KEY = key("_line");
+    private static final byte[] CLASS_KEY = key("_class");
+    private static final byte[] METHOD_KEY = key("_method");
+    private static final byte[] MARKER_KEY = key("_marker");
+    // Would become _id, which GELF reserves.
+    private static final String RESERVED_FIELD = "id";
+
+    // Shared by every codec, so keys stay cached when an appender rebuilds its codec.
+    private static final GELFFieldKeys FIELD_KEYS = new GELFFieldKeys(1024);
+    private static final int STACK_TRACE_CACHE_SIZE = 256;
+
+    private static final ThreadLocal<GELFJsonWriter> WRITERS = new ThreadLocal<GELFJsonWriter>() {
+        @Override
+        protected GELFJsonWriter initialValue() {
+            return new GELFJsonWriter();
+        }
+    };
+
     private final String host;
     private final boolean includeCallerData;
     private final boolean includeStackTrace;
+    private final byte[][] prefixes;
+    private final byte[] suffix;
+    // Both null unless includeStackTrace is set.
+    private final ThrowableProxyConverter converter;
+    private final StackTraceCache stackTraces;
+    private final boolean includeMdc;
+    private final Set<String> mdcIncludes;
+    private final Set<String> mdcExcludes;
+    private final boolean includeMarker;
+    private final boolean numericTimestamp;
+    // The MDC keys the static fields shadow, or null.
+    private final Set<String> staticKeys;
+
+    /**
+     * Builds a codec from named settings. Everything optional starts off, as
+     * with the three-argument constructor.
+     */
+    public static class Builder {
+        private final String host;
+        private boolean includeCallerData;
+        private boolean includeStackTrace;
+        private boolean includeMdc;
+        private Set<String> mdcIncludes;
+        private Set<String> mdcExcludes;
+        private boolean includeMarker;
+        private Map<String, String> staticFields;
+        private boolean numericTimestamp;
+
+        public Builder(String host) {
+            this.host = host;
+        }
+
+        public Builder includeCallerData(boolean includeCallerData) {
+            this.includeCallerData = includeCallerData;
+            return this;
+        }
+
+        public Builder includeStackTrace(boolean includeStackTrace) {
+            this.includeStackTrace = includeStackTrace;
+            return this;
+        }
 
+        /**
+         * Send MDC entries as additional fields.
+         */
+        public Builder includeMdc(boolean includeMdc) {
+            this.includeMdc = includeMdc;
+            return this;
+        }
+
+        /**
+         * If not null or empty, the only MDC keys to send.
+         */
+        public Builder mdcIncludes(Set<String> mdcIncludes) {
+            this.mdcIncludes = mdcIncludes;
+            return this;
+        }
+
+        /**
+         * If not null, MDC keys not to send.
+         */
+        public Builder mdcExcludes(Set<String> mdcExcludes) {
+            this.mdcExcludes = mdcExcludes;
+            return this;
+        }
+
+        /**
+         * Send the event's marker as the _marker field.
+         */
+        public Builder includeMarker(boolean includeMarker) {
+            this.includeMarker = includeMarker;
+            return this;
+        }
+
+        /**
+         * Fields to add to every event, or null; each key is prefixed with an
+         * underscore ("_").
+         */
+        public Builder staticFields(Map<String, String> staticFields) {
+            this.staticFields = staticFields;
+            return this;
+        }
+
+        /**
+         * Write the timestamp as a number with millisecond precision, rather
+         * than as a string of whole seconds.
+         */
+        public Builder numericTimestamp(boolean numericTimestamp) {
+            this.numericTimestamp = numericTimestamp;
+            return this;
+        }
+
+        public GELFCodec build() {
+            return new GELFCodec(host, includeCallerData, includeStackTrace, includeMdc, mdcIncludes, mdcExcludes,
+                    includeMarker, staticFields, numericTimestamp);
+        }
+    }
+
+    /**
+     * A codec that sends neither MDC entries nor markers, and writes the
+     * timestamp as a string of whole seconds.
+     */
     public GELFCodec(String host, boolean includeCallerData, boolean includeStackTrace) {
+        this(host, includeCallerData, includeStackTrace, false, null, null, false, null, false);
+    }
+
+    /**
+     * @see Builder
+     */
+    public GELFCodec(String host, boolean includeCallerData, boolean includeStackTrace,
+                     boolean includeMdc, Set<String> mdcIncludes, Set<String> mdcExcludes,
+                     boolean includeMarker) {
+        this(host, includeCallerData, includeStackTrace, includeMdc, mdcIncludes, mdcExcludes, includeMarker,
+                null, false);
+    }
+
+    /**
+     * @see Builder
+     */
+    public GELFCodec(String host, boolean includeCallerData, boolean includeStackTrace,
+                     boolean includeMdc, Set<String> mdcIncludes, Set<String> mdcExcludes,
+                     boolean includeMarker, Map<String, String> staticFields) {
+        this(host, includeCallerData, includeStackTrace, includeMdc, mdcIncludes, mdcExcludes, includeMarker,
+                staticFields, false);
+    }
+
+    /**
+     * @param includeMdc Whether to send MDC entries as additional fields.
+     * @param mdcIncludes If not null or empty, the only MDC keys to send.
+     * @param mdcExcludes If not null, MDC keys not to send.
+     * @param includeMarker Whether to send the event's marker as the _marker field.
+     * @param staticFields Fields to add to every event, or null; each key is
+     *                     prefixed with an underscore ("_").
+     * @param numericTimestamp Whether to write the timestamp as a number with
+     *                         millisecond precision, rather than as a string of
+     *                         whole seconds.
+     * @see Builder
+     */
+    public GELFCodec(String host, boolean includeCallerData, boolean includeStackTrace,
+                     boolean includeMdc, Set<String> mdcIncludes, Set<String> mdcExcludes,
+                     boolean includeMarker, Map<String, String> staticFields,
+                     boolean numericTimestamp) {
         if (host == null)
             throw new NullPointerException();
         if (host.length() == 0)
@@ -32,145 +210,250 @@ public class GELFCodec {
         this.host = host;
         this.includeCallerData = includeCallerData;
         this.includeStackTrace = includeStackTrace;
+        this.includeMdc = includeMdc;
+        this.mdcIncludes = mdcIncludes == null || mdcIncludes.isEmpty() ? null : new HashSet<String>(mdcIncludes);
+        this.mdcExcludes = mdcExcludes == null || mdcExcludes.isEmpty() ? null : new HashSet<String>(mdcExcludes);
+        this.includeMarker = includeMarker;
+        this.numericTimestamp = numericTimestamp;
+        this.staticKeys = staticFields == null || staticFields.isEmpty() ? null : new HashSet<String>(staticFields.keySet());
+        if (includeStackTrace) {
+            // The converter keeps no state between calls, so encoding threads can share it.
+            this.converter = new ThrowableProxyConverter();
+            converter.setOptionList(Collections.singletonList("full"));
+            converter.start();
+            this.stackTraces = new StackTraceCache(STACK_TRACE_CACHE_SIZE);
+        } else {
+            this.converter = null;
+            this.stackTraces = null;
+        }
+
+        // Everything before the message depends only on the host and the level,
+        // and everything after the MDC only on the static fields, so encode them once.
+        GELFJsonWriter w = new GELFJsonWriter();
+        byte[] hostValue = GELFJsonWriter.quoted(host);
+        this.prefixes = new byte[SYSLOG_DEBUG + 1][];
+        for (int level : new int[] { SYSLOG_ERROR, SYSLOG_WARN, SYSLOG_INFO, SYSLOG_DEBUG }) {
+            w.reset();
+            w.writeRaw(VERSION_FIELD);
+            w.writeRaw(LEVEL_KEY);
+            w.writeInt(level);
+            w.writeByte(',');
+            w.writeRaw(HOST_KEY);
+            w.writeRaw(hostValue);
+            w.writeByte(',');
+            prefixes[level] = w.toByteArray();
+        }
+        w.reset();
+        writeFields(staticFields, w);
+        w.writeByte('}');
+        this.suffix = w.toByteArray();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(GELFJsonWriter.UTF8);
+    }
+
+    private static byte[] key(String name) {
+        byte[] quoted = GELFJsonWriter.quoted(name);
+        byte[] ret = Arrays.copyOf(quoted, quoted.length + 1);
+        ret[quoted.length] = ':';
+        return ret;
     }
 
     /**
      * Encode the given log event as uncompressed JSON, framed for TCP transport with a null byte.
      *
      * @param event The event.
-     * @param staticFields A set of key/value pairs to include in the event; each key is prefixed
-     *                     with an underscore ("_").
+     * @param extraFields Key/value pairs to include in the event as well as the codec's static
+     *                    fields; each key is prefixed with an underscore ("_"). Integer and
+     *                    Long values are sent as JSON numbers, anything else as a string.
      * @return An array of byte buffers containing the JSON bytes ready to send.
      */
-    public ByteBuffer[] framed(ILoggingEvent event, Map<String, String> staticFields) {
+    public ByteBuffer[] framed(ILoggingEvent event, Map<String, ?> extraFields) {
         ByteBuffersOutputStream out = new ByteBuffersOutputStream();
-        encodeTo(event, staticFields, out);
-        out.write(0);
+        writeFramed(event, extraFields, out);
         return out.toBuffers();
     }
 
     public ByteBuffer[] framed(ILoggingEvent event) {
-        return framed(event, Collections.<String, String>emptyMap());
+        return framed(event, null);
     }
 
-    private void encodeTo(ILoggingEvent event, Map<String, String> staticFields, OutputStream out) {
+    /**
+     * Encode the given log event as uncompressed JSON followed by a null byte, appending
+     * it to an output stream.
+     *
+     * @param event The event.
+     * @param extraFields Additional fields, as in {@link #framed(ILoggingEvent, Map)}, or null.
+     * @param out The stream to write to.
+     */
+    public void writeFramed(ILoggingEvent event, Map<String, ?> extraFields, OutputStream out) {
+        GELFJsonWriter w = WRITERS.get();
+        w.reset();
+        encodeTo(event, extraFields, w);
+        w.writeByte(0);
         try {
-            OutputStreamWriter w = new OutputStreamWriter(out, "UTF-8");
-            w.write('{');
-            writeJsonString(w, "version");
-            w.write(':');
-            writeJsonString(w, GELF_VERSION);
-            w.write(',');
-
-            writeJsonString(w, "level");
-            w.write(':');
-            writeJsonInt(w, mapLevelToSyslog(event.getLevel()));
-            w.write(',');
-
-            writeJsonString(w, "host");
-            w.write(':');
-            writeJsonString(w, host);
-            w.write(',');
-
-            String message = event.getFormattedMessage();
-
-            if (message.indexOf('\n') > 0) {
-                writeJsonString(w, "full_message");
-                w.write(':');
-                writeJsonString(w, message);
-                w.write(',');
-
-                writeJsonString(w, "short_message");
-                w.write(':');
-                writeJsonString(w, message.substring(0, message.indexOf('\n')));
-                w.write(',');
-            } else {
-                writeJsonString(w, "short_message");
-                w.write(':');
-                writeJsonString(w, message);
-                w.write(',');
-            }
+            w.writeTo(out);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
 
-            if (event.getThrowableProxy() != null) {
-                if (includeStackTrace) {
-                    ThrowableProxyConverter converter = new ThrowableProxyConverter();
-                    converter.setOptionList(Collections.singletonList("full"));
-                    converter.start();
-                    writeJsonString(w, "_stack_trace");
-                    w.write(':');
-                    writeJsonString(w, converter.convert(event));
-                    w.write(',');
-                }
-                writeJsonString(w, "_exception");
-                w.write(':');
-                writeJsonString(w, event.getThrowableProxy().getClassName() + ": " + event.getThrowableProxy().getMessage());
-                w.write(',');
+    /**
+     * Encode the given log event as uncompressed JSON followed by a null byte.
+     *
+     * @param event The event.
+     * @param extraFields Additional fields, as in {@link #framed(ILoggingEvent, Map)}, or null.
+     * @return A new array holding exactly the framed bytes.
+     */
+    public byte[] encodeFramed(ILoggingEvent event, Map<String, ?> extraFields) {
+        GELFJsonWriter w = WRITERS.get();
+        w.reset();
+        encodeTo(event, extraFields, w);
+        w.writeByte(0);
+        return w.toByteArray();
+    }
+
+    private void encodeTo(ILoggingEvent event, Map<String, ?> extraFields, GELFJsonWriter w) {
+        w.writeRaw(prefixes[mapLevelToSyslog(event.getLevel())]);
+
+        String message = event.getFormattedMessage();
+
+        int newline = message.indexOf('\n');
+        if (newline > 0) {
+            w.writeRaw(FULL_MESSAGE_KEY);
+            w.writeString(message);
+            w.writeByte(',');
+
+            w.writeRaw(SHORT_MESSAGE_KEY);
+            w.writeString(message.substring(0, newline));
+            w.writeByte(',');
+        } else {
+            w.writeRaw(SHORT_MESSAGE_KEY);
+            w.writeString(message);
+            w.writeByte(',');
+        }
+
+        IThrowableProxy throwable = event.getThrowableProxy();
+        if (throwable != null) {
+            if (includeStackTrace) {
+                w.writeRaw(STACK_TRACE_KEY);
+                w.writeRaw(stackTraces.get(event, converter));
+                w.writeByte(',');
             }
+            w.writeRaw(EXCEPTION_KEY);
+            w.writeByte('"');
+            w.writeEscaped(throwable.getClassName());
+            w.writeRaw(EXCEPTION_SEPARATOR);
+            w.writeEscaped(String.valueOf(throwable.getMessage()));
+            w.writeByte('"');
+            w.writeByte(',');
+        }
 
-            writeJsonString(w, "timestamp");
-            w.write(':');
-            writeJsonString(w, BigDecimal.valueOf(event.getTimeStamp()).divide(TIMESTAMP_DIVISOR, BigDecimal.ROUND_DOWN).toPlainString());
-            w.write(',');
-
-            writeJsonString(w, "_logger");
-            w.write(':');
-            writeJsonString(w, event.getLoggerName());
-            w.write(',');
-
-            writeJsonString(w, "_thread");
-            w.write(':');
-            writeJsonString(w, event.getThreadName());
-
-            if (includeCallerData || event.hasCallerData()) {
-                StackTraceElement[] stack = event.getCallerData();
-                if (stack != null && stack.length > 0) {
-                    w.write(',');
-
-                    writeJsonString(w, "_file");
-                    w.write(':');
-                    writeJsonString(w, stack[0].getFileName());
-                    w.write(',');
-
-                    writeJsonString(w, "_line");
-                    w.write(':');
-                    writeJsonInt(w, stack[0].getLineNumber());
-                    w.write(',');
-
-                    writeJsonString(w, "_class");
-                    w.write(':');
-                    writeJsonString(w, stack[0].getClassName());
-                    w.write(',');
-
-                    writeJsonString(w, "_method");
-                    w.write(':');
-                    writeJsonString(w, stack[0].getMethodName());
-                }
+        w.writeRaw(TIMESTAMP_KEY);
+        if (numericTimestamp)
+            w.writeTimestamp(event.getTimeStamp());
+        else
+            w.writeString(BigDecimal.valueOf(event.getTimeStamp()).divide(TIMESTAMP_DIVISOR, BigDecimal.ROUND_DOWN).toPlainString());
+        w.writeByte(',');
+
+        w.writeRaw(LOGGER_KEY);
+        w.writeString(event.getLoggerName());
+        w.writeByte(',');
+
+        w.writeRaw(THREAD_KEY);
+        w.writeString(event.getThreadName());
+
+        if (includeCallerData || event.hasCallerData()) {
+            StackTraceElement[] stack = event.getCallerData();
+            if (stack != null && stack.length > 0) {
+                w.writeByte(',');
+
+                w.writeRaw(FILE_KEY);
+                w.writeString(stack[0].getFileName());
+                w.writeByte(',');
+
+                w.writeRaw(LINE_KEY);
+                w.writeInt(stack[0].getLineNumber());
+                w.writeByte(',');
+
+                w.writeRaw(CLASS_KEY);
+                w.writeString(stack[0].getClassName());
+                w.writeByte(',');
+
+                w.writeRaw(METHOD_KEY);
+                w.writeString(stack[0].getMethodName());
             }
+        }
 
-            if (staticFields != null) {
-                for (Map.Entry<String, String> e: staticFields.entrySet()) {
-                    w.write(',');
-                    writeJsonString(w, "_" + e.getKey());
-                    w.write(':');
-                    writeJsonString(w, e.getValue());
+        if (includeMdc) {
+            Map<String, String> mdc = event.getMDCPropertyMap();
+            if (mdc != null) {
+                for (Map.Entry<String, String> e : mdc.entrySet()) {
+                    String key = e.getKey();
+                    if (e.getValue() == null
+                            || RESERVED_FIELD.equals(key)
+                            || (staticKeys != null && staticKeys.contains(key))
+                            || (mdcIncludes != null && !mdcIncludes.contains(key))
+                            || (mdcExcludes != null && mdcExcludes.contains(key)))
+                        continue;
+                    w.writeByte(',');
+                    w.writeRaw(FIELD_KEYS.get(key));
+                    w.writeString(e.getValue());
                 }
             }
+        }
 
-            w.write('}');
-            w.flush();
+        if (includeMarker) {
+            Marker marker = event.getMarker();
+            if (marker != null) {
+                w.writeByte(',');
+                w.writeRaw(MARKER_KEY);
+                w.writeString(marker.getName());
+            }
         }
-        catch (IOException ioe) {
-            throw new RuntimeException(ioe);
+
+        writeFields(extraFields, w);
+        w.writeRaw(suffix);
+    }
+
+    private static void writeFields(Map<String, ?> fields, GELFJsonWriter w) {
+        if (fields != null) {
+            for (Map.Entry<String, ?> e: fields.entrySet()) {
+                Object value = e.getValue();
+                if (value == null || RESERVED_FIELD.equals(e.getKey()))
+                    continue;
+                w.writeByte(',');
+                w.writeRaw(FIELD_KEYS.get(e.getKey()));
+                if (value instanceof Long || value instanceof Integer)
+                    w.writeLong(((Number) value).longValue());
+                else
+                    w.writeString(value.toString());
+            }
         }
     }
 
-    private static final int SYSLOG_ERROR = 3;
-    private static final int SYSLOG_WARN = 4;
+    /**
+     * @return How many stack traces were found already rendered.
+     */
+    long stackTraceCacheHits() {
+        return stackTraces != null ? stackTraces.hits() : 0;
+    }
+
+    /**
+     * @return How many stack traces had to be rendered.
+     */
+    long stackTraceCacheMisses() {
+        return stackTraces != null ? stackTraces.misses() : 0;
+    }
+
+    static final int SYSLOG_ERROR = 3;
+    static final int SYSLOG_WARN = 4;
     private static final int SYSLOG_NOTICE = 5;
-    private static final int SYSLOG_INFO = 6;
-    private static final int SYSLOG_DEBUG = 7;
+    static final int SYSLOG_INFO = 6;
+    static final int SYSLOG_DEBUG = 7;
 
-    private static int mapLevelToSyslog(Level l) {
+    static int mapLevelToSyslog(Level l) {
         if (l.isGreaterOrEqual(Level.ERROR)) {
             return SYSLOG_ERROR;
         } else if (l.isGreaterOrEqual(Level.WARN)) {
@@ -182,23 +465,4 @@ public class GELFCodec {
         }
     }
 
-    private static void writeJsonInt(Writer w, Integer i) throws IOException {
-        w.write(i.toString());
-    }
-
-    private static void writeJsonString(Writer w, String s) throws IOException {
-        w.write('"');
-        for (int i = 0; i < s.length(); i++) {
-            char ch = s.charAt(i);
-            if (Character.isISOControl(ch)) {
-                w.write(String.format("\\u%04x", (int) ch));
-            } else if (ch == '"' || ch == '\\') {
-                w.write('\\');
-                w.write(ch);
-            } else {
-                w.write(ch);
-            }
-        }
-        w.write('"');
-    }
 }
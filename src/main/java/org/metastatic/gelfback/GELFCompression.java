@@ -0,0 +1,22 @@
+package org.metastatic.gelfback;
+
+/**
+ * How GELF messages are compressed on the wire. Graylog's UDP and HTTP inputs
+ * detect and inflate both formats; GELF over TCP can't carry compressed messages.
+ */
+public enum GELFCompression {
+    /**
+     * Messages are sent as plain JSON.
+     */
+    NONE,
+
+    /**
+     * Messages are GZIP streams.
+     */
+    GZIP,
+
+    /**
+     * Messages are ZLIB streams.
+     */
+    ZLIB
+}
@@ -0,0 +1,111 @@
+package org.metastatic.gelfback;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses encoded GELF messages as GZIP or ZLIB streams.
+ *
+ * A compressor keeps one {@link Deflater} and resets it between messages, so
+ * compressing a message allocates nothing, and the deflater's native memory
+ * is set up once rather than per event. Not thread-safe; each sender thread
+ * has its own, and must {@link #end()} it when done.
+ */
+final class GELFCompressor {
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] output = new byte[4096];
+    private byte[] input;
+
+    /**
+     * @param compression GZIP or ZLIB.
+     * @param level The deflate level, 0-9, or -1 for the default.
+     */
+    GELFCompressor(GELFCompression compression, int level) {
+        if (compression == GELFCompression.NONE)
+            throw new IllegalArgumentException("no compressor for " + compression);
+        this.gzip = compression == GELFCompression.GZIP;
+        // GZIP wraps a raw deflate stream in its own header and trailer.
+        this.deflater = new Deflater(level, gzip);
+    }
+
+    /**
+     * Compress the first length bytes held in a run of readable slabs.
+     *
+     * @param slabs The slabs, as from {@link ByteBuffersOutputStream#readableBuffers()}.
+     * @param slabCount The number of slabs holding data.
+     * @param length The number of bytes to compress.
+     * @param out Where to write the compressed stream.
+     */
+    void compress(ByteBuffer[] slabs, int slabCount, long length, ByteBuffersOutputStream out) {
+        deflater.reset();
+        crc.reset();
+        if (gzip)
+            out.write(GZIP_HEADER);
+        long remaining = length;
+        for (int i = 0; i < slabCount && remaining > 0; i++) {
+            ByteBuffer slab = slabs[i];
+            int n = (int) Math.min(slab.remaining(), remaining);
+            byte[] array;
+            int offset;
+            if (slab.hasArray()) {
+                array = slab.array();
+                offset = slab.arrayOffset() + slab.position();
+            } else {
+                // Deflater only reads arrays, so direct slabs are copied through a scratch array.
+                if (input == null || input.length < n)
+                    input = new byte[slab.capacity()];
+                ByteBuffer view = slab.duplicate();
+                view.get(input, 0, n);
+                array = input;
+                offset = 0;
+            }
+            if (gzip)
+                crc.update(array, offset, n);
+            deflater.setInput(array, offset, n);
+            while (!deflater.needsInput())
+                deflate(out);
+            remaining -= n;
+        }
+        deflater.finish();
+        while (!deflater.finished())
+            deflate(out);
+        if (gzip) {
+            writeIntLE(out, (int) crc.getValue());
+            writeIntLE(out, (int) length);
+        }
+    }
+
+    /**
+     * @return The HTTP content coding of the compressed stream.
+     */
+    String contentEncoding() {
+        // HTTP's "deflate" coding is the ZLIB format.
+        return gzip ? "gzip" : "deflate";
+    }
+
+    private void deflate(ByteBuffersOutputStream out) {
+        int n = deflater.deflate(output);
+        out.write(output, 0, n);
+    }
+
+    private static void writeIntLE(ByteBuffersOutputStream out, int i) {
+        out.write(i);
+        out.write(i >>> 8);
+        out.write(i >>> 16);
+        out.write(i >>> 24);
+    }
+
+    /**
+     * Free the deflater's native memory. The compressor must not be used afterwards.
+     */
+    void end() {
+        deflater.end();
+    }
+}
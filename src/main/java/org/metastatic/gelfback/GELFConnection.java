@@ -0,0 +1,277 @@
+package org.metastatic.gelfback;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A non-blocking socket plus the encoded batches waiting to be written to it,
+ * driven by a {@link GELFIOLoop}.
+ *
+ * The sender {@link #submit(Batch)}s batches from its own thread; the loop
+ * writes them in order, as fast as the socket takes them. {@link #outstanding()}
+ * counts the bytes submitted but not yet written, so the sender can pick the
+ * least loaded connection in a pool, and back off when every socket is slow.
+ * When the connector replaces a connection it {@link #retire()}s the old one:
+ * no more batches are accepted, and the socket is closed once the batches
+ * already queued are written, so a reconnect never cuts a batch off halfway.
+ */
+final class GELFConnection implements GELFIOLoop.Handler {
+    /**
+     * An encoded batch, and the number of queued events it holds.
+     */
+    static final class Batch {
+        final ByteBuffersOutputStream data;
+        final long size;
+        final int events;
+        // When the oldest event in the batch was appended.
+        final long enqueuedNanos;
+        // True for spilled records being replayed, which the sender acknowledges
+        // to the spill once they are written.
+        final boolean replay;
+
+        Batch(ByteBuffersOutputStream data, int events, long enqueuedNanos) {
+            this(data, events, enqueuedNanos, false);
+        }
+
+        Batch(ByteBuffersOutputStream data, int events, long enqueuedNanos, boolean replay) {
+            this.data = data;
+            this.size = data.size();
+            this.events = events;
+            this.enqueuedNanos = enqueuedNanos;
+            this.replay = replay;
+        }
+    }
+
+    /**
+     * Told about a connection's progress, on the loop thread.
+     */
+    interface Listener {
+        void connected(GELFConnection connection);
+
+        void written(GELFConnection connection, Batch batch);
+
+        /**
+         * The connection failed to connect, or a write failed, and it is closed.
+         *
+         * @param unwritten The batches that were not written, oldest first.
+         */
+        void failed(GELFConnection connection, List<Batch> unwritten, IOException cause);
+    }
+
+    private final int slot;
+    private final SocketChannel channel;
+    private final GELFIOLoop loop;
+    private final Listener listener;
+    private final GELFMetrics metrics;
+    private final Deque<Batch> queue = new ArrayDeque<Batch>();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flush = new Runnable() {
+        public void run() {
+            flushScheduled.set(false);
+            flush();
+        }
+    };
+    private volatile boolean retired;
+    // Only used on the loop thread.
+    private SelectionKey key;
+    private GELFIOLoop.Timer connectTimer;
+    private boolean connected;
+    private boolean closed;
+
+    GELFConnection(int slot, SocketChannel channel, GELFIOLoop loop, Listener listener, GELFMetrics metrics) {
+        this.slot = slot;
+        this.channel = channel;
+        this.loop = loop;
+        this.listener = listener;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The index of this connection in the appender's pool.
+     */
+    int slot() {
+        return slot;
+    }
+
+    /**
+     * @return The number of bytes submitted but not yet written.
+     */
+    long outstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Start connecting. Only call this on the loop thread.
+     *
+     * @param timeoutMillis How long to wait for the connection before giving up.
+     */
+    void connect(InetSocketAddress address, long timeoutMillis) {
+        try {
+            channel.configureBlocking(false);
+            key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+            if (channel.connect(address)) {
+                connected();
+                return;
+            }
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        connectTimer = loop.schedule(new Runnable() {
+            public void run() {
+                fail(new SocketTimeoutException("connect timed out"));
+            }
+        }, timeoutMillis);
+    }
+
+    public void ready(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (channel.finishConnect())
+                    connected();
+            } else if (key.isWritable()) {
+                flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void connected() {
+        if (connectTimer != null)
+            connectTimer.cancel();
+        connected = true;
+        key.interestOps(0);
+        listener.connected(this);
+        flush();
+    }
+
+    /**
+     * Queue a batch for writing.
+     *
+     * @return False if the connection has been retired; use another.
+     */
+    boolean submit(Batch batch) {
+        synchronized (queue) {
+            if (retired)
+                return false;
+            queue.addLast(batch);
+        }
+        outstanding.addAndGet(batch.size);
+        scheduleFlush();
+        return true;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true))
+            loop.execute(flush);
+    }
+
+    /**
+     * Write queued batches until the socket stops taking bytes, then wait for
+     * it to become writable again.
+     */
+    private void flush() {
+        if (closed)
+            return;
+        if (!connected) {
+            if (retired)
+                fail(new IOException("retired before connecting"));
+            return;
+        }
+        try {
+            while (true) {
+                Batch batch;
+                synchronized (queue) {
+                    batch = queue.peekFirst();
+                }
+                if (batch == null)
+                    break;
+                if (!batch.data.writeTo(channel)) {
+                    metrics.partialWrites.increment();
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                synchronized (queue) {
+                    queue.removeFirst();
+                }
+                outstanding.addAndGet(-batch.size);
+                batch.data.close();
+                listener.written(this, batch);
+            }
+            key.interestOps(0);
+            if (retired) {
+                boolean idle;
+                synchronized (queue) {
+                    idle = queue.isEmpty();
+                }
+                if (idle)
+                    close();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Stop accepting batches, and close the socket once the batches already
+     * queued are written.
+     */
+    void retire() {
+        synchronized (queue) {
+            retired = true;
+        }
+        scheduleFlush();
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * Close the connection and hand back whatever wasn't written. Only call
+     * this on the loop thread.
+     */
+    void fail(IOException cause) {
+        if (closed)
+            return;
+        List<Batch> unwritten;
+        synchronized (queue) {
+            retired = true;
+            unwritten = queue.isEmpty() ? Collections.<Batch>emptyList() : new ArrayList<Batch>(queue);
+            queue.clear();
+        }
+        outstanding.set(0);
+        close();
+        listener.failed(this, unwritten, cause);
+    }
+
+    private void close() {
+        closed = true;
+        if (connectTimer != null)
+            connectTimer.cancel();
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // pass
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GELFConnection(" + slot + ", " + channel + ")";
+    }
+}
@@ -0,0 +1,49 @@
+package org.metastatic.gelfback;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded cache of encoded additional field keys: the key prefixed with an
+ * underscore, escaped, quoted, and followed by a colon.
+ *
+ * The same few dozen MDC and static field keys repeat in millions of events,
+ * so each is escaped once and then copied in as raw bytes. Once the cache is
+ * full, keys not already in it are encoded on every use instead of evicting
+ * anything, so a stream of one-off keys can't grow it without bound.
+ */
+final class GELFFieldKeys {
+    private final ConcurrentHashMap<String, byte[]> keys = new ConcurrentHashMap<String, byte[]>();
+    private final int maxSize;
+
+    GELFFieldKeys(int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("maxSize must be positive");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param key The field name, without the underscore.
+     * @return The encoded key; don't modify it.
+     */
+    byte[] get(String key) {
+        byte[] encoded = keys.get(key);
+        if (encoded == null) {
+            encoded = encode(key);
+            if (keys.size() < maxSize)
+                keys.putIfAbsent(key, encoded);
+        }
+        return encoded;
+    }
+
+    int size() {
+        return keys.size();
+    }
+
+    private static byte[] encode(String key) {
+        byte[] quoted = GELFJsonWriter.quoted("_" + key);
+        byte[] ret = Arrays.copyOf(quoted, quoted.length + 1);
+        ret[quoted.length] = ':';
+        return ret;
+    }
+}
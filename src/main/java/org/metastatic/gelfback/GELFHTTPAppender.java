@@ -0,0 +1,380 @@
+package org.metastatic.gelfback;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append log messages to Graylog's GELF HTTP input.
+ *
+ * Events are POSTed in batches of up to batchSize messages, separated by
+ * newlines, which needs bulk receiving turned on in the input; set batchSize
+ * to 1 for inputs without it. Requests go through {@link HttpURLConnection},
+ * which keeps connections alive between requests. A batch that fails with an
+ * I/O error or a 5xx, 408 or 429 status is retried with exponential backoff,
+ * resending the bytes already encoded, up to maxRetries times. Set compression
+ * to GZIP or ZLIB to compress request bodies of at least compressionThreshold
+ * bytes.
+ */
+public class GELFHTTPAppender extends AbstractGELFAppender {
+    private class Sender implements Runnable {
+        private final List<QueuedEvent> batch = new ArrayList<QueuedEvent>();
+        private final ByteBuffersOutputStream body = new ByteBuffersOutputStream(slabPool);
+        private final GELFCompressor compressor = newCompressor();
+        private final ByteBuffersOutputStream compressed = compressor != null ? new ByteBuffersOutputStream(slabPool) : null;
+        private final String contentEncoding = compressor != null ? compressor.contentEncoding() : null;
+        private final byte[] scratch = new byte[SLAB_SIZE];
+        // The number of events the last fillBatch() encoded into the body.
+        private int encoded;
+        // When the oldest of them was appended.
+        private long oldestNanos;
+
+        public void run() {
+            debug("GELF HTTP Sender thread starting");
+            while (isRunning.get()) {
+                int count = 0;
+                try {
+                    count = fillBatch();
+                    failed.addAndGet(count - encoded);
+                    if (encoded > 0)
+                        post(encoded);
+                } catch (InterruptedException e) {
+                    debug(e, "sender interrupted");
+                } catch (Exception e) {
+                    debug(e, "exception on sender loop");
+                } finally {
+                    body.reset();
+                    completed(count);
+                }
+            }
+            body.close();
+            if (compressor != null) {
+                compressor.end();
+                compressed.close();
+            }
+        }
+
+        /**
+         * Take up to batchSize events off the queue, waiting up to lingerMillis
+         * for more once the first arrives, and encode them into the body.
+         *
+         * @return The number of events taken; {@link #encoded} says how many
+         *   of them made it into the body.
+         */
+        private int fillBatch() throws InterruptedException {
+            batch.clear();
+            encoded = 0;
+            if (drainQueue(batch, batchSize) == 0) {
+                QueuedEvent event = pollQueue(IDLE_WAKEUP_MILLIS, TimeUnit.MILLISECONDS);
+                if (event == null)
+                    return 0;
+                batch.add(event);
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+            while (batch.size() < batchSize && isRunning.get()) {
+                if (drainQueue(batch, batchSize - batch.size()) > 0)
+                    continue;
+                long remaining = draining ? 0 : deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                QueuedEvent event = pollQueue(remaining, TimeUnit.NANOSECONDS);
+                if (event == null)
+                    break;
+                batch.add(event);
+            }
+            GELFCodec codec = codec();
+            for (int i = 0; i < batch.size(); i++) {
+                QueuedEvent event = batch.set(i, null);
+                if (!encode(event, codec, body))
+                    continue;
+                oldestNanos = encoded == 0 ? event.enqueuedNanos() : earlier(oldestNanos, event.enqueuedNanos());
+                encoded++;
+                // Messages in a bulk request are separated by newlines, not NULs.
+                body.truncate(body.size() - 1);
+                body.write('\n');
+            }
+            return batch.size();
+        }
+
+        /**
+         * POST the body, retrying with backoff until it is accepted, rejected,
+         * or out of retries.
+         */
+        private void post(int count) {
+            // Leave off the final newline.
+            long length = body.size() - 1;
+            if (length <= 0)
+                return;
+            ByteBuffersOutputStream payload = body;
+            String encoding = null;
+            if (compressor != null && length >= compressionThreshold) {
+                compressed.reset();
+                compressor.compress(body.readableBuffers(), body.slabCount(), length, compressed);
+                payload = compressed;
+                length = compressed.size();
+                encoding = contentEncoding;
+            }
+            long backoff = retryBackoffMillis;
+            for (int attempt = 0; ; attempt++) {
+                int status;
+                try {
+                    status = send(payload, length, encoding);
+                } catch (IOException e) {
+                    debug(e, "POST to %s failed", url);
+                    status = -1;
+                }
+                if (status >= 200 && status < 300) {
+                    requests.incrementAndGet();
+                    metrics.sent.add(count);
+                    metrics.bytesWritten.add(length);
+                    metrics.written(oldestNanos);
+                    return;
+                }
+                if (status >= 400 && status < 500 && status != 408 && status != 429) {
+                    debug("%s rejected a batch of %d events with status %d", url, count, status);
+                    failed.addAndGet(count);
+                    return;
+                }
+                if (attempt >= maxRetries || !isRunning.get()) {
+                    debug("giving up on a batch of %d events after %d attempts", count, attempt + 1);
+                    failed.addAndGet(count);
+                    return;
+                }
+                retries.incrementAndGet();
+                pause(backoff);
+                backoff = Math.min(backoff * 2, maxRetryBackoffMillis);
+            }
+        }
+
+        /**
+         * Make one request.
+         *
+         * @return The response status.
+         */
+        private int send(ByteBuffersOutputStream payload, long length, String encoding) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                connection.setConnectTimeout(connectTimeoutMillis);
+                connection.setReadTimeout(readTimeoutMillis);
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                if (encoding != null)
+                    connection.setRequestProperty("Content-Encoding", encoding);
+                connection.setFixedLengthStreamingMode(length);
+                OutputStream out = connection.getOutputStream();
+                write(payload.readableBuffers(), payload.slabCount(), length, out);
+                out.close();
+                int status = connection.getResponseCode();
+                // Read the whole response, so the connection can be kept alive.
+                InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                if (in != null) {
+                    while (in.read(scratch) >= 0) {
+                        // discard
+                    }
+                    in.close();
+                }
+                return status;
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+        }
+
+        /**
+         * Write the first length bytes of some slabs, leaving the slabs
+         * untouched so a retry can send them again.
+         */
+        private void write(ByteBuffer[] slabs, int slabCount, long length, OutputStream out) throws IOException {
+            for (int i = 0; i < slabCount && length > 0; i++) {
+                ByteBuffer slab = slabs[i];
+                int n = (int) Math.min(slab.remaining(), length);
+                if (slab.hasArray()) {
+                    out.write(slab.array(), slab.arrayOffset() + slab.position(), n);
+                } else {
+                    ByteBuffer view = slab.duplicate();
+                    view.get(scratch, 0, n);
+                    out.write(scratch, 0, n);
+                }
+                length -= n;
+            }
+        }
+
+        private void pause(long millis) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            long remaining;
+            while (isRunning.get() && (remaining = deadline - System.nanoTime()) > 0)
+                LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    private static final long IDLE_WAKEUP_MILLIS = 250;
+
+    private String path = "/gelf";
+    private boolean https;
+    private volatile URL url;
+    private int batchSize = 128;
+    private long lingerMillis = 5;
+    private int connectTimeoutMillis = 10000;
+    private int readTimeoutMillis = 10000;
+    private int maxRetries = 5;
+    private long retryBackoffMillis = 100;
+    private long maxRetryBackoffMillis = 10000;
+    private Thread senderThread;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    @Override
+    boolean startTransport() {
+        try {
+            url = buildUrl();
+        } catch (MalformedURLException e) {
+            addError("Invalid GELF HTTP URL", e);
+            return false;
+        }
+        senderThread = new Thread(new Sender(), "GELF-HTTP-Sender");
+        senderThread.setDaemon(true);
+        senderThread.start();
+        return true;
+    }
+
+    @Override
+    void stopTransport() {
+        // Cut short any backoff.
+        LockSupport.unpark(senderThread);
+        join(senderThread);
+        senderThread = null;
+    }
+
+    @Override
+    void targetChanged() {
+        if (url == null)
+            return;
+        try {
+            url = buildUrl();
+        } catch (MalformedURLException e) {
+            addError("Invalid GELF HTTP URL", e);
+        }
+    }
+
+    private URL buildUrl() throws MalformedURLException {
+        return new URL(https ? "https" : "http", host, port, path);
+    }
+
+    /**
+     * The path of the GELF HTTP input; "/gelf" by default.
+     */
+    public void setPath(String path) {
+        debug("setting path: %s", path);
+        if (!path.startsWith("/"))
+            throw new IllegalArgumentException("path must start with /");
+        this.path = path;
+        targetChanged();
+    }
+
+    /**
+     * POST over HTTPS rather than plain HTTP.
+     */
+    public void setHttps(boolean https) {
+        debug("setting https: %s", https);
+        this.https = https;
+        targetChanged();
+    }
+
+    /**
+     * The most events to send in one request. Takes effect at start.
+     */
+    public void setBatchSize(int batchSize) {
+        debug("setting batchSize: %s", batchSize);
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize must be positive");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * How long to wait for more events to fill a batch, once the first has arrived.
+     */
+    public void setLingerMillis(long lingerMillis) {
+        debug("setting lingerMillis: %s", lingerMillis);
+        if (lingerMillis < 0)
+            throw new IllegalArgumentException("lingerMillis must not be negative");
+        this.lingerMillis = lingerMillis;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        debug("setting connectTimeoutMillis: %s", connectTimeoutMillis);
+        if (connectTimeoutMillis <= 0)
+            throw new IllegalArgumentException("connectTimeoutMillis must be positive");
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * How long to wait for a response to a request.
+     */
+    public void setReadTimeoutMillis(int readTimeoutMillis) {
+        debug("setting readTimeoutMillis: %s", readTimeoutMillis);
+        if (readTimeoutMillis <= 0)
+            throw new IllegalArgumentException("readTimeoutMillis must be positive");
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * How many times to retry a failed batch before discarding it.
+     */
+    public void setMaxRetries(int maxRetries) {
+        debug("setting maxRetries: %s", maxRetries);
+        if (maxRetries < 0)
+            throw new IllegalArgumentException("maxRetries must not be negative");
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * How long to wait before the first retry; each later retry waits twice
+     * as long, up to maxRetryBackoffMillis.
+     */
+    public void setRetryBackoffMillis(long retryBackoffMillis) {
+        debug("setting retryBackoffMillis: %s", retryBackoffMillis);
+        if (retryBackoffMillis <= 0)
+            throw new IllegalArgumentException("retryBackoffMillis must be positive");
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    public void setMaxRetryBackoffMillis(long maxRetryBackoffMillis) {
+        debug("setting maxRetryBackoffMillis: %s", maxRetryBackoffMillis);
+        if (maxRetryBackoffMillis <= 0)
+            throw new IllegalArgumentException("maxRetryBackoffMillis must be positive");
+        this.maxRetryBackoffMillis = maxRetryBackoffMillis;
+    }
+
+    /**
+     * @return The number of requests Graylog accepted.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return The number of times a request was retried.
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return The number of events discarded because they couldn't be
+     *   encoded, or their batch was rejected or failed after every retry.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+}
@@ -0,0 +1,228 @@
+package org.metastatic.gelfback;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A selector thread that does the network I/O for every GELF appender in the
+ * JVM: non-blocking connects with a timeout, and writes that carry on where
+ * they left off once the socket is writable again.
+ *
+ * Everything that touches a channel runs on the loop thread; other threads
+ * hand work over with {@link #execute(Runnable)}. Name resolution blocks, so
+ * it runs on resolver threads via {@link #executeBlocking(Runnable)}, which
+ * pass their results back to the loop.
+ */
+final class GELFIOLoop implements Runnable {
+    /**
+     * Something registered with the loop's selector, as the key's attachment.
+     */
+    interface Handler {
+        /**
+         * Called on the loop thread when the key is ready.
+         */
+        void ready(SelectionKey key);
+    }
+
+    /**
+     * A task to run on the loop thread after a delay.
+     */
+    static final class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final Runnable task;
+        private boolean cancelled;
+
+        private Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /**
+         * Don't run the task. Only call this on the loop thread.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        public int compareTo(Timer o) {
+            long d = deadline - o.deadline;
+            return d < 0 ? -1 : d > 0 ? 1 : 0;
+        }
+    }
+
+    private static GELFIOLoop shared;
+    private static int users;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private final AtomicBoolean selecting = new AtomicBoolean();
+    private final ExecutorService resolver;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private GELFIOLoop() throws IOException {
+        this.selector = Selector.open();
+        // Resolver threads come and go as needed, so one slow lookup doesn't hold up the rest.
+        this.resolver = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GELF-Resolver-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.thread = new Thread(this, "GELF-IO");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Get the shared loop, starting it if no appender is using it. Pair each
+     * call with {@link #release(GELFIOLoop)}.
+     */
+    static synchronized GELFIOLoop acquire() throws IOException {
+        if (shared == null) {
+            shared = new GELFIOLoop();
+            shared.thread.start();
+        }
+        users++;
+        return shared;
+    }
+
+    /**
+     * Stop using a loop. The loop stops, closing any channels still open,
+     * once no appender uses it.
+     */
+    static synchronized void release(GELFIOLoop loop) {
+        if (loop == shared && --users == 0) {
+            shared = null;
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Run a task on the loop thread. The task must not block.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (selecting.compareAndSet(true, false))
+            selector.wakeup();
+    }
+
+    /**
+     * Run a task that may block, such as a name lookup, off the loop thread.
+     */
+    void executeBlocking(Runnable task) {
+        resolver.execute(task);
+    }
+
+    /**
+     * Run a task on the loop thread after a delay. Only call this on the loop thread.
+     */
+    Timer schedule(Runnable task, long delayMillis) {
+        Timer timer = new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), task);
+        timers.add(timer);
+        return timer;
+    }
+
+    public void run() {
+        while (running) {
+            long timeout = runTimers();
+            try {
+                selecting.set(true);
+                if (tasks.isEmpty())
+                    selector.select(timeout);
+                else
+                    selector.selectNow();
+            } catch (IOException e) {
+                debug(e);
+            } finally {
+                selecting.set(false);
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (key.isValid())
+                        ((Handler) key.attachment()).ready(key);
+                } catch (RuntimeException e) {
+                    debug(e);
+                }
+            }
+            runTasks();
+        }
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // pass
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // pass
+        }
+        resolver.shutdown();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                debug(e);
+            }
+        }
+    }
+
+    /**
+     * Run the timers that are due.
+     *
+     * @return How long to select for until the next timer is due; zero for no timer.
+     */
+    private long runTimers() {
+        while (!timers.isEmpty()) {
+            Timer next = timers.peek();
+            long remaining = next.deadline - System.nanoTime();
+            if (remaining > 0 && !next.cancelled)
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+            timers.poll();
+            if (!next.cancelled) {
+                try {
+                    next.task.run();
+                } catch (RuntimeException e) {
+                    debug(e);
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static void debug(Throwable t) {
+        if (AbstractGELFAppender.debugging)
+            t.printStackTrace(System.err);
+    }
+}
@@ -0,0 +1,253 @@
+package org.metastatic.gelfback;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A reusable, growable byte sink that writes JSON tokens directly as UTF-8.
+ *
+ * Strings are escaped with a lookup table and encoded by hand, so writing an
+ * event allocates nothing once the internal buffer has grown to fit it. Output
+ * is byte-for-byte what an {@link java.io.OutputStreamWriter} would produce for
+ * the same escaping rules, including the {@code '?'} replacement for unpaired
+ * surrogates.
+ */
+final class GELFJsonWriter {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final int CHUNK = 1024;
+
+    private static final byte ESC_NONE = 0;
+    private static final byte ESC_UNICODE = 1;
+    private static final byte ESC_BACKSLASH = 2;
+
+    private static final byte[] ESCAPES = new byte[128];
+    private static final byte[] HEX = "0123456789abcdef".getBytes(UTF8);
+    private static final byte[] MIN_INT = Integer.toString(Integer.MIN_VALUE).getBytes(UTF8);
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(UTF8);
+
+    static {
+        for (int i = 0; i < 128; i++) {
+            if (Character.isISOControl((char) i))
+                ESCAPES[i] = ESC_UNICODE;
+        }
+        ESCAPES['"'] = ESC_BACKSLASH;
+        ESCAPES['\\'] = ESC_BACKSLASH;
+    }
+
+    private byte[] buf;
+    private int count;
+    // The digits of the seconds of the last timestamp written, reused while
+    // events keep arriving within the same second.
+    private long cachedSeconds = -1;
+    private final byte[] secondsDigits = new byte[19];
+    private int secondsLength;
+
+    GELFJsonWriter() {
+        this(INITIAL_CAPACITY);
+    }
+
+    GELFJsonWriter(int initialCapacity) {
+        buf = new byte[initialCapacity];
+    }
+
+    /**
+     * Discard the current contents. If an unusually large event grew the buffer,
+     * it is shrunk back so one huge stack trace doesn't pin memory forever.
+     */
+    void reset() {
+        count = 0;
+        if (buf.length > MAX_RETAINED_CAPACITY)
+            buf = new byte[INITIAL_CAPACITY];
+    }
+
+    int size() {
+        return count;
+    }
+
+    byte[] array() {
+        return buf;
+    }
+
+    byte[] toByteArray() {
+        byte[] ret = new byte[count];
+        System.arraycopy(buf, 0, ret, 0, count);
+        return ret;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    private void ensure(int extra) {
+        int needed = count + extra;
+        if (needed > buf.length) {
+            int newLength = Math.max(buf.length << 1, needed);
+            byte[] b = new byte[newLength];
+            System.arraycopy(buf, 0, b, 0, count);
+            buf = b;
+        }
+    }
+
+    void writeByte(int b) {
+        ensure(1);
+        buf[count++] = (byte) b;
+    }
+
+    void writeRaw(byte[] b) {
+        writeRaw(b, 0, b.length);
+    }
+
+    void writeRaw(byte[] b, int offset, int length) {
+        ensure(length);
+        System.arraycopy(b, offset, buf, count, length);
+        count += length;
+    }
+
+    void writeInt(int i) {
+        if (i == Integer.MIN_VALUE) {
+            writeRaw(MIN_INT);
+            return;
+        }
+        writeLong(i);
+    }
+
+    void writeLong(long l) {
+        if (l == Long.MIN_VALUE) {
+            writeRaw(MIN_LONG);
+            return;
+        }
+        ensure(20);
+        if (l < 0) {
+            buf[count++] = '-';
+            l = -l;
+        }
+        int digits = 1;
+        for (long t = l; t >= 10; t /= 10)
+            digits++;
+        int p = count + digits;
+        do {
+            buf[--p] = (byte) ('0' + (int) (l % 10));
+            l /= 10;
+        } while (l != 0);
+        count += digits;
+    }
+
+    /**
+     * Write a time as a JSON number of seconds with millisecond precision,
+     * such as 978336000.123.
+     *
+     * @param millis Milliseconds since the epoch.
+     */
+    void writeTimestamp(long millis) {
+        if (millis < 0) {
+            writeByte('-');
+            millis = millis == Long.MIN_VALUE ? Long.MAX_VALUE : -millis;
+        }
+        long seconds = millis / 1000;
+        int ms = (int) (millis % 1000);
+        if (seconds != cachedSeconds) {
+            int digits = 1;
+            for (long t = seconds; t >= 10; t /= 10)
+                digits++;
+            long l = seconds;
+            for (int p = digits; p > 0; l /= 10)
+                secondsDigits[--p] = (byte) ('0' + (int) (l % 10));
+            secondsLength = digits;
+            cachedSeconds = seconds;
+        }
+        ensure(secondsLength + 4);
+        System.arraycopy(secondsDigits, 0, buf, count, secondsLength);
+        count += secondsLength;
+        buf[count++] = '.';
+        buf[count++] = (byte) ('0' + ms / 100);
+        buf[count++] = (byte) ('0' + ms / 10 % 10);
+        buf[count++] = (byte) ('0' + ms % 10);
+    }
+
+    /**
+     * Write a quoted, escaped JSON string.
+     */
+    void writeString(String s) {
+        writeByte('"');
+        writeEscaped(s);
+        writeByte('"');
+    }
+
+    /**
+     * Write the escaped contents of a JSON string, without the quotes.
+     */
+    void writeEscaped(String s) {
+        int len = s.length();
+        int i = 0;
+        while (i < len) {
+            int end = Math.min(len, i + CHUNK);
+            // Worst case is six bytes (a \\u escape) per char.
+            ensure((end - i) * 6);
+            byte[] b = buf;
+            int c = count;
+            for (; i < end; i++) {
+                char ch = s.charAt(i);
+                if (ch < 128) {
+                    byte esc = ESCAPES[ch];
+                    if (esc == ESC_NONE) {
+                        b[c++] = (byte) ch;
+                    } else if (esc == ESC_BACKSLASH) {
+                        b[c++] = '\\';
+                        b[c++] = (byte) ch;
+                    } else {
+                        c = unicodeEscape(b, c, ch);
+                    }
+                } else if (ch < 0x800) {
+                    if (ch <= 0x9F) {
+                        // C1 control characters
+                        c = unicodeEscape(b, c, ch);
+                    } else {
+                        b[c++] = (byte) (0xC0 | (ch >> 6));
+                        b[c++] = (byte) (0x80 | (ch & 0x3F));
+                    }
+                } else if (Character.isSurrogate(ch)) {
+                    if (Character.isHighSurrogate(ch) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(ch, s.charAt(++i));
+                        b[c++] = (byte) (0xF0 | (cp >> 18));
+                        b[c++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                        b[c++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                        b[c++] = (byte) (0x80 | (cp & 0x3F));
+                    } else {
+                        b[c++] = '?';
+                    }
+                } else {
+                    b[c++] = (byte) (0xE0 | (ch >> 12));
+                    b[c++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                    b[c++] = (byte) (0x80 | (ch & 0x3F));
+                }
+            }
+            count = c;
+        }
+    }
+
+    private static int unicodeEscape(byte[] b, int c, char ch) {
+        b[c++] = '\\';
+        b[c++] = 'u';
+        b[c++] = HEX[(ch >> 12) & 0xF];
+        b[c++] = HEX[(ch >> 8) & 0xF];
+        b[c++] = HEX[(ch >> 4) & 0xF];
+        b[c++] = HEX[ch & 0xF];
+        return c;
+    }
+
+    /**
+     * Escape a string once, for use as a precomputed constant.
+     *
+     * @param s The string.
+     * @return The quoted, escaped UTF-8 bytes of s.
+     */
+    static byte[] quoted(String s) {
+        GELFJsonWriter w = new GELFJsonWriter(s.length() * 6 + 2);
+        w.writeString(s);
+        return w.toByteArray();
+    }
+}
@@ -0,0 +1,58 @@
+package org.metastatic.gelfback;
+
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and histograms behind {@link GELFAppenderMXBean} that the
+ * queue and ring buffer don't already keep. Counters are {@link LongAdder}s
+ * and histograms are striped, so recording from many threads doesn't contend;
+ * nothing here is touched by append() except for eager encoding's encode time.
+ */
+final class GELFMetrics {
+    final LongAdder sent = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    final LongAdder partialWrites = new LongAdder();
+    final LongAdder reconnects = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder encodeFailures = new LongAdder();
+    final LatencyHistogram encodeNanos = new LatencyHistogram();
+    final LatencyHistogram queueWaitNanos = new LatencyHistogram();
+    final LatencyHistogram sendLatencyNanos = new LatencyHistogram();
+    // Only written by the consumer thread.
+    private volatile int queueDepthHighWater;
+
+    /**
+     * Encode an event for sending, recording how long it waited in the queue
+     * and how long encoding took.
+     */
+    void encode(QueuedEvent event, GELFCodec codec, OutputStream out) {
+        long start = System.nanoTime();
+        queueWaitNanos.record(start - event.enqueuedNanos());
+        event.writeFramed(codec, out);
+        // An eagerly encoded event is only copied here; its encode time was
+        // recorded when it was appended.
+        if (!(event instanceof EncodedEvent))
+            encodeNanos.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Note that a write finished, recording how long ago the oldest event in
+     * it was appended.
+     */
+    void written(long enqueuedNanos) {
+        sendLatencyNanos.record(System.nanoTime() - enqueuedNanos);
+    }
+
+    /**
+     * Note the queue depth seen by the consumer.
+     */
+    void queueDepth(int depth) {
+        if (depth > queueDepthHighWater)
+            queueDepthHighWater = depth;
+    }
+
+    int queueDepthHighWater() {
+        return queueDepthHighWater;
+    }
+}
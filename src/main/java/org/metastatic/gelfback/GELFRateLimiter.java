@@ -0,0 +1,221 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits how many events with the same logger, level and message template get
+ * through in each window, remembering how many were held back so a summary
+ * can be sent once the window ends.
+ *
+ * Keys live in a fixed-size open-addressing table split into segments, each
+ * with its own lock, so threads logging different statements rarely contend.
+ * A lookup probes a few slots of one segment; when they are all taken by keys
+ * still in their window, the event is let through rather than growing the
+ * table. Summaries are handed to a {@link Sink} outside any lock.
+ */
+final class GELFRateLimiter {
+    /**
+     * Receives the last suppressed event of a key whose window ended, and how
+     * many of its events were suppressed in that window.
+     */
+    interface Sink {
+        void summary(ILoggingEvent lastSuppressed, long suppressedCount);
+    }
+
+    private static final int SEGMENTS = 64;
+    private static final int MAX_PROBES = 8;
+
+    private static final class Segment {
+        final String[] loggers;
+        final String[] templates;
+        final int[] levels;
+        final int[] hashes;
+        final long[] windowStarts;
+        final int[] counts;
+        final long[] suppressed;
+        final ILoggingEvent[] lastSuppressed;
+
+        Segment(int size) {
+            loggers = new String[size];
+            templates = new String[size];
+            levels = new int[size];
+            hashes = new int[size];
+            windowStarts = new long[size];
+            counts = new int[size];
+            suppressed = new long[size];
+            lastSuppressed = new ILoggingEvent[size];
+        }
+
+        /**
+         * Empty a slot; a slot in use always has a count of at least one.
+         */
+        void clear(int i) {
+            loggers[i] = null;
+            templates[i] = null;
+            lastSuppressed[i] = null;
+            suppressed[i] = 0;
+            counts[i] = 0;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int segmentMask;
+    private final int maxEvents;
+    private final long windowMillis;
+    private volatile long nextSweep;
+
+    /**
+     * @param tableSize The number of keys to track, rounded up to a power of
+     *                  two of at least {@value #SEGMENTS}.
+     * @param maxEvents How many events per key to let through in each window.
+     * @param windowMillis The length of a window.
+     */
+    GELFRateLimiter(int tableSize, int maxEvents, long windowMillis) {
+        if (tableSize <= 0)
+            throw new IllegalArgumentException("tableSize must be positive");
+        if (maxEvents <= 0)
+            throw new IllegalArgumentException("maxEvents must be positive");
+        if (windowMillis <= 0)
+            throw new IllegalArgumentException("windowMillis must be positive");
+        int segmentSize = Integer.highestOneBit(Math.max(tableSize / SEGMENTS, 1) * 2 - 1);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(segmentSize);
+        this.segmentMask = segmentSize - 1;
+        this.maxEvents = maxEvents;
+        this.windowMillis = windowMillis;
+    }
+
+    private static int hash(String logger, String template, int level) {
+        int h = logger != null ? logger.hashCode() : 0;
+        h = 31 * h + (template != null ? template.hashCode() : 0);
+        h = 31 * h + level;
+        // Spread the bits, since the low ones pick the segment and the high ones the slot.
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean same(String a, String b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    /**
+     * Count an event against its key.
+     *
+     * @param now The current time, in milliseconds.
+     * @param sink Receives the summary of the key's previous window, or of a
+     *             key evicted to make room, if any events were suppressed in it.
+     * @return True to send the event, false to suppress it.
+     */
+    boolean tryAcquire(ILoggingEvent event, long now, Sink sink) {
+        String logger = event.getLoggerName();
+        String template = event.getMessage();
+        int level = event.getLevel().toInt();
+        int h = hash(logger, template, level);
+        Segment s = segments[h & (SEGMENTS - 1)];
+        int start = h >>> 6;
+        ILoggingEvent summaryEvent = null;
+        long summaryCount = 0;
+        boolean allowed = true;
+        synchronized (s) {
+            int free = -1;
+            int found = -1;
+            for (int p = 0; p < MAX_PROBES && p <= segmentMask; p++) {
+                int i = (start + p) & segmentMask;
+                if (s.counts[i] == 0) {
+                    if (free < 0)
+                        free = i;
+                    continue;
+                }
+                if (s.hashes[i] == h && s.levels[i] == level && same(s.loggers[i], logger) && same(s.templates[i], template)) {
+                    found = i;
+                    break;
+                }
+                if (free < 0 && now - s.windowStarts[i] >= windowMillis)
+                    free = i;
+            }
+            if (found >= 0) {
+                int i = found;
+                if (now - s.windowStarts[i] >= windowMillis) {
+                    summaryEvent = s.lastSuppressed[i];
+                    summaryCount = s.suppressed[i];
+                    s.windowStarts[i] = now;
+                    s.counts[i] = 1;
+                    s.suppressed[i] = 0;
+                    s.lastSuppressed[i] = null;
+                } else if (s.counts[i] < maxEvents) {
+                    s.counts[i]++;
+                } else {
+                    s.suppressed[i]++;
+                    // Logback fills these in lazily from the current thread, so
+                    // pin them before the event goes on to another.
+                    event.getThreadName();
+                    event.getMDCPropertyMap();
+                    s.lastSuppressed[i] = event;
+                    allowed = false;
+                }
+            } else if (free >= 0) {
+                int i = free;
+                summaryEvent = s.lastSuppressed[i];
+                summaryCount = s.suppressed[i];
+                s.loggers[i] = logger;
+                s.templates[i] = template;
+                s.levels[i] = level;
+                s.hashes[i] = h;
+                s.windowStarts[i] = now;
+                s.counts[i] = 1;
+                s.suppressed[i] = 0;
+                s.lastSuppressed[i] = null;
+            }
+        }
+        if (summaryCount > 0)
+            sink.summary(summaryEvent, summaryCount);
+        return allowed;
+    }
+
+    /**
+     * Send the summaries of keys whose window has ended, at most once per
+     * window, so a flood that stops still gets its summary without waiting
+     * for the same statement to log again. Cheap to call on every event.
+     */
+    void sweep(long now, Sink sink) {
+        long next = nextSweep;
+        if (now < next)
+            return;
+        synchronized (this) {
+            if (nextSweep != next)
+                return;
+            nextSweep = now + windowMillis;
+        }
+        drain(now, false, sink);
+    }
+
+    /**
+     * Send the summaries of every key with suppressed events, whether or not
+     * its window has ended, and forget all keys.
+     */
+    void flush(Sink sink) {
+        drain(0, true, sink);
+    }
+
+    private void drain(long now, boolean all, Sink sink) {
+        List<ILoggingEvent> events = new ArrayList<ILoggingEvent>();
+        List<Long> counts = new ArrayList<Long>();
+        for (Segment s : segments) {
+            synchronized (s) {
+                for (int i = 0; i <= segmentMask; i++) {
+                    if (!all && now - s.windowStarts[i] < windowMillis)
+                        continue;
+                    if (s.suppressed[i] > 0) {
+                        events.add(s.lastSuppressed[i]);
+                        counts.add(s.suppressed[i]);
+                    }
+                    s.clear(i);
+                }
+            }
+        }
+        for (int i = 0; i < events.size(); i++)
+            sink.summary(events.get(i), counts.get(i));
+    }
+}
@@ -1,267 +1,772 @@
 package org.metastatic.gelfback;
 
-import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.core.AppenderBase;
-
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Append log messages to Graylog via GELF TCP.
  */
-public class GELFTCPAppender extends AppenderBase<ILoggingEvent> {
+public class GELFTCPAppender extends AbstractGELFAppender {
     private class Sender implements Runnable {
+        private final List<QueuedEvent> pending = new ArrayList<QueuedEvent>();
+        private int next = 0;
+        // True while a batch of spilled records is out on a connection.
+        private boolean replaying;
+        // Events handed to a connection or the spill during the current loop.
+        private int handedOff;
+        // Events taken during the current loop that couldn't be encoded.
+        private int failed;
+        // When the oldest event in the current batch was appended.
+        private long oldestNanos;
+
         public void run() {
             debug("GELF Sender thread starting");
+            ByteBuffersOutputStream out = new ByteBuffersOutputStream(slabPool);
+            ByteBuffersOutputStream replay = new ByteBuffersOutputStream(slabPool);
             while (isRunning.get()) {
+                int count = 0;
+                handedOff = 0;
+                failed = 0;
                 try {
-                    ILoggingEvent event = events.take();
-                    debug("received event: %s", event);
-                    SocketChannel channel = null;
-                    debug("sender waiting for %s..", connectedMonitor);
-                    synchronized (connectedMonitor) {
-                        debug("sender locked %s", connectedMonitor);
-                        while (isRunning.get() && (channel = GELFTCPAppender.this.channel.get()) == null) {
-                            try {
-                                debug("waiting for connection...");
-                                connectedMonitor.wait(1000);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
+                    resendReturned();
+                    if (encoders != null) {
+                        try {
+                            sendParallel();
+                        } finally {
+                            count = pending.size();
+                        }
+                    } else {
+                        out.reset();
+                        count = fillBatch(out);
+                        if (count > failed) {
+                            debug("encoded batch of %d events, %d bytes", count - failed, out.size());
+                            dispatch(out, count - failed, oldestNanos);
                         }
-                        if (!isRunning.get() || channel == null)
-                            continue;
-                        GELFCodec codec = GELFTCPAppender.this.codec.get();
-                        if (codec == null) // shouldn't happen
-                            continue;
-                        ByteBuffer[] formatted = codec.framed(event, staticFields != null ? staticFields : Collections.<String, String>emptyMap());
-                        channel.write(formatted);
-                        debug("sent message!");
-                        inflight--;
                     }
+                    replaySpill(replay);
                 } catch (Exception e) {
                     debug(e, "exception on sender loop");
+                } finally {
+                    // Events not handed off were dropped along the way.
+                    completed(count - handedOff);
                 }
             }
+            // Keep what a failed connection handed back, if there is a spill.
+            GELFConnection.Batch batch;
+            while ((batch = returned.poll()) != null) {
+                if (spill != null)
+                    spill(batch);
+                else
+                    discard(batch);
+            }
+            if (encoders != null)
+                encoders.shutdown();
+            if (spill != null) {
+                settleReplay();
+                spill.close();
+            }
         }
-    }
 
-    private class Connector implements Runnable {
-        public void run() {
-            boolean complainedAboutUnknownHost = false;
-            debug("GELF Connector thread starting");
-            SocketChannel channel;
+        /**
+         * Take a batch off the queue into pending and have the encoder pool encode
+         * it, handing each encoded chunk to a connection.
+         */
+        private void sendParallel() throws IOException, InterruptedException {
+            collectBatch();
+            if (pending.isEmpty())
+                return;
+            long oldest = pending.get(0).enqueuedNanos();
+            for (QueuedEvent event : pending)
+                oldest = earlier(oldest, event.enqueuedNanos());
+            final long enqueuedNanos = oldest;
+            encoders.encode(pending, codec(), new EncoderPool.Sink() {
+                public void write(ByteBuffersOutputStream chunk, int events) throws InterruptedException {
+                    dispatch(chunk, events, enqueuedNanos);
+                }
+            });
+        }
+
+        /**
+         * Hand the contents of a stream to a connection, or to the spill, leaving
+         * the stream empty.
+         */
+        private void dispatch(ByteBuffersOutputStream data, int events, long enqueuedNanos) throws InterruptedException {
+            handedOff += events;
+            send(new GELFConnection.Batch(data.detach(), events, enqueuedNanos));
+        }
+
+        /**
+         * Send batches that a failed connection handed back, ahead of anything new.
+         */
+        private void resendReturned() throws InterruptedException {
+            GELFConnection.Batch batch;
+            while ((batch = returned.poll()) != null) {
+                debug("resending %d bytes from a failed connection", batch.size);
+                send(batch);
+            }
+        }
+
+        /**
+         * Queue a batch on the least loaded connection. Without a spill directory
+         * this waits for a connection; with one, the batch is spilled if there is
+         * no connection or older spilled records are still waiting.
+         */
+        private void send(GELFConnection.Batch batch) throws InterruptedException {
+            boolean wait = spill == null;
             while (isRunning.get()) {
-                try {
-                    debug("connector waiting for %s..", connectedMonitor);
-                    synchronized (connectedMonitor) {
-                        debug("connector locked %s", connectedMonitor);
-                        debug("resolving %s...", host);
-                        InetAddress hostaddr = InetAddress.getByName(host);
-                        debug("resolved to %s", hostaddr);
-                        InetSocketAddress address = new InetSocketAddress(hostaddr, port);
-                        debug("connecting to %s:%d...", host, port);
-                        channel = SocketChannel.open();
-                        channel.connect(address);
-                        GELFTCPAppender.this.channel.set(channel);
-                        connectedMonitor.notify();
-                    }
-                    debug("GELF TCP connected!");
+                GELFConnection connection = wait || spill.isEmpty() ? pickConnection(batch.size, wait) : null;
+                if (connection == null)
+                    break;
+                if (connection.submit(batch))
+                    return;
+            }
+            if (spill != null && isRunning.get())
+                spill(batch);
+            else
+                discard(batch);
+        }
 
-                    reconnectLock.lock();
-                    try {
-                        reconnectCondition.await(ttlSeconds, TimeUnit.SECONDS);
-                    } catch (InterruptedException e) {
-                        // pass
-                    } finally {
-                        reconnectLock.unlock();
-                    }
-                    debug("reconnect TTL expired, reconnecting...");
+        private void spill(GELFConnection.Batch batch) {
+            try {
+                if (spill.append(batch.data)) {
+                    debug("spilled %d bytes", batch.size);
+                } else {
+                    debug("spill is full; dropping %d bytes", batch.size);
+                    spillDroppedBytes.addAndGet(batch.size);
+                }
+            } catch (IOException e) {
+                debug(e, "failed to spill %d bytes", batch.size);
+                spillDroppedBytes.addAndGet(batch.size);
+            }
+            batch.data.close();
+            completed(batch.events);
+        }
 
-                    synchronized (connectedMonitor) {
-                        GELFTCPAppender.this.channel.set(null);
-                        channel.close();
-                    }
-                } catch (UnknownHostException uhe) {
-                    if (!complainedAboutUnknownHost) {
-                        GELFTCPAppender.this.addError("Unknown host: " + host);
-                        //System.err.println("Unknown host: " + host + ". We will try and resolve the host name again, every 60 seconds. This message will not be printed again.");
-                        complainedAboutUnknownHost = true;
-                    }
-                    try {
-                        Thread.sleep(60000);
-                    } catch (InterruptedException e) {
-                    }
-                } catch (IOException e) {
-                    debug(e, "exception caught connecting: %s", e);
-                } catch (Exception e) {
-                    debug(e, "exception in connector loop");
+        private void discard(GELFConnection.Batch batch) {
+            batch.data.close();
+            completed(batch.events);
+        }
+
+        /**
+         * Hand some of the spilled records to a connection, if there are any and
+         * a connection is up.
+         */
+        private void replaySpill(ByteBuffersOutputStream replay) throws InterruptedException {
+            if (spill == null)
+                return;
+            settleReplay();
+            // One replay at a time, so the spill is acknowledged in order.
+            if (replaying || spill.isEmpty())
+                return;
+            GELFConnection connection = pickConnection(REPLAY_CHUNK_BYTES, false);
+            if (connection == null)
+                return;
+            replay.reset();
+            long n = spill.replayTo(replay, REPLAY_CHUNK_BYTES);
+            if (n == 0)
+                return;
+            debug("replaying %d spilled bytes", n);
+            GELFConnection.Batch batch = new GELFConnection.Batch(replay.detach(), 0, 0, true);
+            if (connection.submit(batch)) {
+                replaying = true;
+            } else {
+                // The records are still at the head of the spill; send them next time.
+                batch.data.close();
+                spill.rewind();
+            }
+        }
+
+        /**
+         * Once the replayed batch has been written, mark its records as replayed;
+         * if its connection failed, rewind the spill to send them again.
+         */
+        private void settleReplay() {
+            Boolean written;
+            while ((written = replayOutcomes.poll()) != null) {
+                replaying = false;
+                if (written) {
+                    spill.acknowledge();
+                    // Wake anyone waiting for the spill to drain.
+                    completed(0);
+                } else {
+                    spill.rewind();
+                }
+            }
+        }
+
+        /**
+         * Wait for the first event of a batch. The wait is bounded, so batches
+         * handed back by a failed connection and spilled records are sent even
+         * if nothing new is logged.
+         *
+         * @return False if no event arrived.
+         */
+        private boolean takeFirst() throws InterruptedException {
+            QueuedEvent event = pollQueue(IDLE_WAKEUP_MILLIS, TimeUnit.MILLISECONDS);
+            if (event == null)
+                return false;
+            pending.add(event);
+            return true;
+        }
+
+        private int drain(int max) {
+            return drainQueue(pending, max);
+        }
+
+        /**
+         * @return The most events to put in a batch: batchSize, or no limit but
+         *   maxBatchBytes while stop() is draining the queue.
+         */
+        private int batchLimit() {
+            return draining ? Integer.MAX_VALUE : batchSize;
+        }
+
+        /**
+         * @return How long to linger for more events, up to a deadline; never
+         *   while draining.
+         */
+        private long lingerNanos(long deadline) {
+            return draining ? 0 : deadline - System.nanoTime();
+        }
+
+        /**
+         * Move up to batchSize queued events into pending, waiting up to lingerMillis
+         * for more if the batch isn't full.
+         */
+        private void collectBatch() throws InterruptedException {
+            pending.clear();
+            int limit = batchLimit();
+            if (drain(limit) == 0 && !takeFirst())
+                return;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+            while (pending.size() < limit && isRunning.get()) {
+                if (drain(limit - pending.size()) == 0) {
+                    long remaining = lingerNanos(deadline);
+                    if (remaining <= 0)
+                        return;
+                    QueuedEvent event = pollQueue(remaining, TimeUnit.NANOSECONDS);
+                    if (event == null)
+                        return;
+                    pending.add(event);
+                }
+            }
+        }
+
+        /**
+         * Encode the events currently queued into out, up to batchSize events
+         * or maxBatchBytes bytes, waiting up to lingerMillis for more events if
+         * the batch isn't full.
+         *
+         * @return The number of events taken off the queue.
+         */
+        private int fillBatch(ByteBuffersOutputStream out) throws InterruptedException {
+            int limit = batchLimit();
+            if (next == pending.size()) {
+                pending.clear();
+                next = 0;
+                if (drain(limit) == 0 && !takeFirst())
+                    return 0;
+            }
+            GELFCodec codec = codec();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+            int count = 0;
+            while (true) {
+                while (next < pending.size() && count < limit && out.size() < maxBatchBytes) {
+                    QueuedEvent event = pending.set(next++, null);
+                    oldestNanos = count == 0 ? event.enqueuedNanos() : earlier(oldestNanos, event.enqueuedNanos());
+                    count++;
+                    if (!encode(event, codec, out))
+                        failed++;
+                }
+                if (count >= limit || out.size() >= maxBatchBytes || !isRunning.get())
+                    return count;
+                pending.clear();
+                next = 0;
+                if (drain(limit - count) == 0) {
+                    long remaining = lingerNanos(deadline);
+                    if (remaining <= 0)
+                        return count;
+                    QueuedEvent event = pollQueue(remaining, TimeUnit.NANOSECONDS);
+                    if (event == null)
+                        return count;
+                    pending.add(event);
                 }
             }
         }
     }
 
-    private static final Pattern keyValuePattern = Pattern.compile("(?<key>[^=]+)=(?<value>[^,]+)(?:,|$)");
+    /**
+     * Choose the live connection with the fewest outstanding bytes, waiting
+     * while every connection already has a full backlog.
+     *
+     * @param size The size of the batch to send.
+     * @param waitForConnection Whether to wait if there is no connection at all.
+     * @return The connection, or null if there is none and waitForConnection
+     *   is false, or if the appender stopped.
+     */
+    private GELFConnection pickConnection(long size, boolean waitForConnection) throws InterruptedException {
+        nextSlot &= Integer.MAX_VALUE;
+        long limit = (long) maxBatchBytes * MAX_OUTSTANDING_BATCHES;
+        while (isRunning.get()) {
+            AtomicReferenceArray<GELFConnection> pool = connections;
+            GELFConnection best = null;
+            // Start the scan at a different slot each time, so ties go round-robin.
+            int start = nextSlot++;
+            for (int i = 0; i < pool.length(); i++) {
+                GELFConnection c = pool.get((start + i) % pool.length());
+                if (c != null && !c.isRetired() && (best == null || c.outstanding() < best.outstanding()))
+                    best = c;
+            }
+            if (best == null && !waitForConnection)
+                return null;
+            if (best != null && (best.outstanding() == 0 || best.outstanding() + size <= limit))
+                return best;
+            debug(best == null ? "waiting for connection..." : "waiting for a connection to catch up...");
+            // The I/O loop unparks the sender when a connection comes up or writes a batch.
+            LockSupport.parkNanos(this, MAX_SENDER_PARK_NANOS);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+        return null;
+    }
 
-    private static final int QUEUE_SIZE = 1024;
-    private final BlockingQueue<ILoggingEvent> events = new ArrayBlockingQueue<ILoggingEvent>(QUEUE_SIZE);
+    private void wakeSender() {
+        Thread sender = senderThread;
+        if (sender != null)
+            LockSupport.unpark(sender);
+    }
 
-    private AtomicReference<SocketChannel> channel = new AtomicReference<SocketChannel>();
+    /**
+     * Keeps one slot of the connection pool connected. It resolves the host on
+     * a resolver thread, connects without blocking, and reconnects when the TTL
+     * runs out or the connection fails. Everything but {@link #reconnect()} and
+     * {@link #stop()} runs on the I/O loop.
+     */
+    private class Connector implements GELFConnection.Listener {
+        private final int slot;
+        private final Runnable resolve = new Runnable() {
+            public void run() {
+                resolve();
+            }
+        };
+        private boolean complainedAboutUnknownHost;
+        private boolean everConnected;
+        private int attempts;
+        private long ttlMillis;
+        // True while a lookup or connect is under way.
+        private boolean busy;
+        private boolean stopped;
+        private GELFConnection connecting;
+        private GELFIOLoop.Timer timer;
 
-    private AtomicBoolean isStarted = new AtomicBoolean(false);
-    private AtomicBoolean isRunning = new AtomicBoolean(false);
+        Connector(int slot) {
+            this.slot = slot;
+            // Spread the pool's first TTL over the whole period, so the connections
+            // never all reconnect at once.
+            this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds) * (slot + 1) / poolSize;
+        }
 
-    private final Object connectedMonitor = new Object();
-    private final Lock reconnectLock = new ReentrantLock();
-    private final Condition reconnectCondition = reconnectLock.newCondition();
+        /**
+         * Connect, or replace the current connection, now.
+         */
+        void reconnect() {
+            loop.execute(resolve);
+        }
 
-    private String host;
-    private int port;
-    private String localhost;
-    private boolean includeCallerData;
-    private boolean includeStackTrace;
-    private AtomicReference<GELFCodec> codec = new AtomicReference<GELFCodec>();
-    private int ttlSeconds = 60;
-    private Map<String, String> staticFields;
-    private long inflight = 0;
+        /**
+         * Stop reconnecting, and retire the current connection.
+         */
+        void stop() {
+            loop.execute(new Runnable() {
+                public void run() {
+                    stopped = true;
+                    cancelTimer();
+                    if (connecting != null)
+                        connecting.retire();
+                    GELFConnection last = connections.getAndSet(slot, null);
+                    if (last != null)
+                        last.retire();
+                }
+            });
+        }
+
+        private void resolve() {
+            if (stopped || busy)
+                return;
+            busy = true;
+            cancelTimer();
+            final String host = GELFTCPAppender.this.host;
+            final int port = GELFTCPAppender.this.port;
+            debug("resolving %s...", host);
+            loop.executeBlocking(new Runnable() {
+                public void run() {
+                    try {
+                        final InetAddress[] addresses = InetAddress.getAllByName(host);
+                        loop.execute(new Runnable() {
+                            public void run() {
+                                connect(addresses, port);
+                            }
+                        });
+                    } catch (UnknownHostException e) {
+                        loop.execute(new Runnable() {
+                            public void run() {
+                                unknownHost(host);
+                            }
+                        });
+                    }
+                }
+            });
+        }
+
+        private void connect(InetAddress[] addresses, int port) {
+            if (stopped) {
+                busy = false;
+                return;
+            }
+            // Rotate through every address, so a pool spreads over all the A
+            // records of a round-robin name.
+            InetAddress address = addresses[(slot + attempts++) % addresses.length];
+            debug("connecting to %s:%d...", address, port);
+            try {
+                connecting = new GELFConnection(slot, SocketChannel.open(), loop, this, metrics);
+            } catch (IOException e) {
+                debug(e, "exception caught connecting: %s", e);
+                metrics.connectFailures.increment();
+                retryIn(RECONNECT_DELAY_MILLIS);
+                return;
+            }
+            connecting.connect(new InetSocketAddress(address, port), connectTimeoutMillis);
+        }
+
+        private void unknownHost(String host) {
+            metrics.connectFailures.increment();
+            if (!complainedAboutUnknownHost) {
+                GELFTCPAppender.this.addError("Unknown host: " + host);
+                complainedAboutUnknownHost = true;
+            }
+            retryIn(UNKNOWN_HOST_RETRY_MILLIS);
+        }
 
-    static GELFTCPAppender self;
-    static final boolean debugging;
+        private void retryIn(long millis) {
+            busy = false;
+            cancelTimer();
+            if (!stopped)
+                timer = loop.schedule(resolve, millis);
+        }
+
+        private void cancelTimer() {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+
+        public void connected(GELFConnection connection) {
+            connecting = null;
+            busy = false;
+            if (stopped) {
+                connection.retire();
+                return;
+            }
+            // The new connection is up before the old one is retired, so sending
+            // never pauses for DNS or the TCP handshake.
+            GELFConnection old = connections.getAndSet(slot, connection);
+            if (old != null)
+                old.retire();
+            if (everConnected)
+                metrics.reconnects.increment();
+            everConnected = true;
+            complainedAboutUnknownHost = false;
+            debug("GELF TCP connected!");
+            wakeSender();
+            cancelTimer();
+            timer = loop.schedule(resolve, ttlMillis);
+            ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        }
+
+        public void written(GELFConnection connection, GELFConnection.Batch batch) {
+            metrics.sent.add(batch.events);
+            metrics.bytesWritten.add(batch.size);
+            completed(batch.events);
+            if (batch.replay)
+                replayOutcomes.add(Boolean.TRUE);
+            else if (batch.events > 0)
+                metrics.written(batch.enqueuedNanos);
+            debug("sent %d messages!", batch.events);
+            wakeSender();
+        }
+
+        public void failed(GELFConnection connection, List<GELFConnection.Batch> unwritten, IOException cause) {
+            debug(cause, "%s failed", connection);
+            for (GELFConnection.Batch batch : unwritten) {
+                if (batch.replay) {
+                    batch.data.close();
+                    replayOutcomes.add(Boolean.FALSE);
+                } else {
+                    batch.data.rewind();
+                    returned.add(batch);
+                }
+            }
+            if (connection == connecting) {
+                connecting = null;
+                metrics.connectFailures.increment();
+                retryIn(RECONNECT_DELAY_MILLIS);
+            } else if (connections.compareAndSet(slot, connection, null) && !busy) {
+                // Not right away: a server that accepts and then resets, such as a
+                // load balancer with no healthy backend, would have us spin.
+                retryIn(RECONNECT_DELAY_MILLIS);
+            }
+            wakeSender();
+        }
+    }
 
-    static {
-        String s = System.getenv("GELFBACK_DEBUG_TO_STDERR");
-        debugging = s != null && s.equalsIgnoreCase("true");
+    @Override
+    void targetChanged() {
+        Connector[] connectors = this.connectors;
+        if (connectors != null) {
+            for (Connector connector : connectors)
+                connector.reconnect();
+        }
     }
 
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final long UNKNOWN_HOST_RETRY_MILLIS = 60000;
+    private static final long MAX_SENDER_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long REPLAY_CHUNK_BYTES = 1024 * 1024;
+    private static final long IDLE_WAKEUP_MILLIS = 250;
+    private static final int MAX_OUTSTANDING_BATCHES = 4;
+
+    private volatile AtomicReferenceArray<GELFConnection> connections = new AtomicReferenceArray<GELFConnection>(1);
+    private volatile Connector[] connectors;
+    private volatile GELFIOLoop loop;
+    private volatile Thread senderThread;
+    // Only used by the sender thread.
+    private int nextSlot;
+    private final Queue<GELFConnection.Batch> returned = new ConcurrentLinkedQueue<GELFConnection.Batch>();
+    // Whether each replayed batch was written, in order, for the sender to settle.
+    private final Queue<Boolean> replayOutcomes = new ConcurrentLinkedQueue<Boolean>();
+
+    private int poolSize = 1;
+    private int connectTimeoutMillis = 10000;
+    private int batchSize = 128;
+    private int maxBatchBytes = 64 * 1024;
+    private int lingerMillis = 0;
+    private int encoderThreads = 0;
+    private EncoderOrdering encoderOrdering = EncoderOrdering.GLOBAL;
+    private EncoderPool encoders;
+    private String spillDirectory;
+    private long maxSpillBytes = 256L * 1024 * 1024;
+    private int spillSegmentBytes = 16 * 1024 * 1024;
+    private volatile SpillBuffer spill;
+    private final AtomicLong spillDroppedBytes = new AtomicLong();
+
     public GELFTCPAppender() {
         if (debugging) {
             System.err.println("GELFTCPAppender created");
         }
-        self = this;
     }
 
     @Override
-    public void start() {
-        codec.set(new GELFCodec(localhost, includeCallerData, includeStackTrace));
-        if (isStarted.compareAndSet(false, true)) {
-            isRunning.set(true);
-            Thread connectorThread = new Thread(new Connector(), "GELF-TCP-Connector");
-            connectorThread.setDaemon(true);
-            connectorThread.start();
-            Thread senderThread = new Thread(new Sender(), "GELF-TCP-Sender");
-            senderThread.setDaemon(true);
-            senderThread.start();
-        }
-        super.start();
+    boolean startTransport() {
+        try {
+            loop = GELFIOLoop.acquire();
+        } catch (IOException e) {
+            addError("can't start the I/O loop", e);
+            return false;
+        }
+        if (encoderThreads > 0)
+            encoders = new EncoderPool(encoderThreads, encoderOrdering, slabPool, metrics);
+        if (spillDirectory != null)
+            openSpill();
+        connections = new AtomicReferenceArray<GELFConnection>(poolSize);
+        Connector[] connectors = new Connector[poolSize];
+        for (int i = 0; i < poolSize; i++)
+            connectors[i] = new Connector(i);
+        this.connectors = connectors;
+        Thread senderThread = new Thread(new Sender(), "GELF-TCP-Sender");
+        senderThread.setDaemon(true);
+        this.senderThread = senderThread;
+        senderThread.start();
+        for (Connector connector : connectors)
+            connector.reconnect();
+        return true;
     }
 
-    @Override
-    public void stop() {
-        isRunning.set(false);
-        super.stop();
+    private void openSpill() {
+        try {
+            spill = new SpillBuffer(new File(spillDirectory), spillSegmentBytes, maxSpillBytes);
+            if (!spill.isEmpty())
+                addInfo("recovered " + spill.pendingBytes() + " spilled bytes from " + spillDirectory);
+        } catch (IOException e) {
+            addError("can't open spill directory " + spillDirectory + "; not spilling", e);
+        } catch (IllegalArgumentException e) {
+            addError("bad spill settings; not spilling", e);
+        }
     }
 
     @Override
-    protected void append(ILoggingEvent e) {
-        debug("appending event %s", e);
-        events.add(new WrappedLoggingEvent(e, includeCallerData));
-        inflight++;
+    void stopTransport() {
+        wakeSender();
+        join(senderThread);
+        senderThread = null;
+        for (Connector connector : connectors)
+            connector.stop();
+        GELFIOLoop.release(loop);
     }
 
-    public void setGelfPort(int port) {
-        debug("setting port to %d", port);
-        this.port = port;
-        reconnectLock.lock();
-        try {
-            reconnectCondition.signal();
-        } finally {
-            reconnectLock.unlock();
-        }
+    /**
+     * How long to wait for a connection to be established before trying again.
+     */
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        debug("setting connectTimeoutMillis: %s", connectTimeoutMillis);
+        if (connectTimeoutMillis <= 0)
+            throw new IllegalArgumentException("connectTimeoutMillis must be positive");
+        this.connectTimeoutMillis = connectTimeoutMillis;
     }
 
-    public void setGelfHost(String host) {
-        debug("setting host to %s", host);
-        this.host = host;
-        reconnectLock.lock();
-        try {
-            reconnectCondition.signal();
-        } finally {
-            reconnectLock.unlock();
-        }
+    /**
+     * The number of connections to keep open to Graylog. Each resolves the host
+     * on its own, and each batch goes to the connection with the fewest bytes
+     * still waiting to be written, so several connections spread load over a
+     * round-robin DNS name or a load balancer. With more than one connection,
+     * batches may arrive out of order. Takes effect at start.
+     */
+    public void setPoolSize(int poolSize) {
+        debug("setting poolSize: %s", poolSize);
+        if (poolSize <= 0)
+            throw new IllegalArgumentException("poolSize must be positive");
+        this.poolSize = poolSize;
     }
 
-    public void setLocalHost(String host) {
-        debug("setting local host: %s", host);
-        this.localhost = host;
-        if (isStarted.get()) {
-            codec.set(new GELFCodec(localhost, includeCallerData, includeStackTrace));
-        }
+    /**
+     * The maximum number of events sent in a single write.
+     */
+    public void setBatchSize(int batchSize) {
+        debug("setting batchSize: %s", batchSize);
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize must be positive");
+        this.batchSize = batchSize;
     }
 
-    public void setIncludeCallerData(boolean includeCallerData) {
-        debug("setting include caller data: %s", includeCallerData);
-        this.includeCallerData = includeCallerData;
-        if (isStarted.get()) {
-            codec.set(new GELFCodec(localhost, includeCallerData, includeStackTrace));
-        }
+    /**
+     * The number of encoded bytes after which a batch is sent, even if it
+     * holds fewer than batchSize events.
+     */
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        debug("setting maxBatchBytes: %s", maxBatchBytes);
+        if (maxBatchBytes <= 0)
+            throw new IllegalArgumentException("maxBatchBytes must be positive");
+        this.maxBatchBytes = maxBatchBytes;
     }
 
-    public void setIncludeStackTrace(boolean includeStackTrace) {
-        debug("setting include stack trace: %s", includeStackTrace);
-        this.includeStackTrace = includeStackTrace;
-        if (isStarted.get()) {
-            codec.set(new GELFCodec(localhost, includeCallerData, includeStackTrace));
-        }
+    /**
+     * How long to wait for more events to fill a partial batch before sending
+     * it. The default, zero, sends whatever is queued right away.
+     */
+    public void setLingerMillis(int lingerMillis) {
+        debug("setting lingerMillis: %s", lingerMillis);
+        if (lingerMillis < 0)
+            throw new IllegalArgumentException("lingerMillis must not be negative");
+        this.lingerMillis = lingerMillis;
     }
 
-    public void setTtlSeconds(int ttlSeconds) {
-        debug("setting ttlSeconds: %s", ttlSeconds);
-        this.ttlSeconds = ttlSeconds;
+    /**
+     * The number of threads encoding events in parallel. The default, zero,
+     * encodes on the sender thread. Takes effect at start.
+     */
+    public void setEncoderThreads(int encoderThreads) {
+        debug("setting encoderThreads: %s", encoderThreads);
+        if (encoderThreads < 0)
+            throw new IllegalArgumentException("encoderThreads must not be negative");
+        this.encoderThreads = encoderThreads;
     }
 
-    public void setStaticFields(String staticFields) {
-        debug("setting static fields: %s", staticFields);
-        Matcher matcher = keyValuePattern.matcher(staticFields);
-        Map<String, String> kvs = new LinkedHashMap<String, String>();
-        while (matcher.find()) {
-            kvs.put(matcher.group("key"), matcher.group("value"));
-        }
-        this.staticFields = kvs;
-        debug("static fields: %s", kvs);
+    /**
+     * The ordering kept by parallel encoding; one of the {@link EncoderOrdering}
+     * names. Takes effect at start.
+     */
+    public void setEncoderOrdering(String encoderOrdering) {
+        debug("setting encoderOrdering: %s", encoderOrdering);
+        this.encoderOrdering = EncoderOrdering.valueOf(encoderOrdering.trim().toUpperCase());
     }
 
-    private static void debug(String fmt, Object... args) {
-        if (debugging) {
-            System.err.println(String.format(fmt, args));
-        }
+    /**
+     * A directory to spill encoded batches to while Graylog is unreachable.
+     * Spilled batches are sent, in order, once a connection is back, and
+     * survive a restart. By default nothing is spilled, and the sender waits
+     * for a connection. Takes effect at start.
+     */
+    public void setSpillDirectory(String spillDirectory) {
+        debug("setting spillDirectory: %s", spillDirectory);
+        this.spillDirectory = spillDirectory;
     }
 
-    private static void debug(Throwable t, String fmt, Object... args) {
-        debug(fmt, args);
-        if (debugging) {
-            t.printStackTrace(System.err);
+    /**
+     * The most disk space spill files may use; batches that don't fit are dropped.
+     */
+    public void setMaxSpillBytes(long maxSpillBytes) {
+        debug("setting maxSpillBytes: %s", maxSpillBytes);
+        if (maxSpillBytes <= 0)
+            throw new IllegalArgumentException("maxSpillBytes must be positive");
+        this.maxSpillBytes = maxSpillBytes;
+    }
+
+    /**
+     * The size of each spill file. Batches larger than this can't be spilled.
+     */
+    public void setSpillSegmentBytes(int spillSegmentBytes) {
+        debug("setting spillSegmentBytes: %s", spillSegmentBytes);
+        if (spillSegmentBytes <= 0)
+            throw new IllegalArgumentException("spillSegmentBytes must be positive");
+        this.spillSegmentBytes = spillSegmentBytes;
+    }
+
+    /**
+     * @return The number of spilled bytes waiting to be replayed.
+     */
+    public long getSpilledBytes() {
+        SpillBuffer spill = this.spill;
+        return spill != null ? spill.pendingBytes() : 0;
+    }
+
+    /**
+     * @return The number of encoded bytes dropped because the spill was full.
+     */
+    public long getSpillDroppedBytes() {
+        return spillDroppedBytes.get();
+    }
+
+    /**
+     * @return The number of connections that are up and taking batches.
+     */
+    public int getConnectionCount() {
+        AtomicReferenceArray<GELFConnection> pool = connections;
+        int n = 0;
+        for (int i = 0; i < pool.length(); i++) {
+            GELFConnection c = pool.get(i);
+            if (c != null && !c.isRetired())
+                n++;
         }
+        return n;
     }
 
-    public static boolean drained() {
-        return (self.events.isEmpty() && (self.inflight == 0));
+    /**
+     * @return True if spilled events are waiting to be replayed.
+     */
+    @Override
+    protected boolean hasBacklog() {
+        return getSpilledBytes() > 0;
     }
 }
@@ -0,0 +1,220 @@
+package org.metastatic.gelfback;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append log messages to Graylog via GELF UDP.
+ *
+ * Messages larger than maxChunkSize are split into GELF chunks; messages that
+ * would need more than 128 chunks are dropped. UDP gives no delivery
+ * guarantee, so this suits high-volume streams where losing some messages is
+ * acceptable, such as DEBUG logging. Set compression to GZIP or ZLIB to
+ * compress messages of at least compressionThreshold bytes.
+ */
+public class GELFUDPAppender extends AbstractGELFAppender {
+    private class Sender implements Runnable {
+        private final List<QueuedEvent> batch = new ArrayList<QueuedEvent>();
+        private final GELFChunker chunker = new GELFChunker(maxChunkSize);
+        private final ByteBuffersOutputStream out = new ByteBuffersOutputStream(slabPool);
+        private final GELFCompressor compressor = newCompressor();
+        private final ByteBuffersOutputStream compressed = compressor != null ? new ByteBuffersOutputStream(slabPool) : null;
+        private DatagramChannel channel;
+        private long resolveAt;
+        private boolean everConnected;
+        private boolean complainedAboutUnknownHost;
+
+        public void run() {
+            debug("GELF UDP Sender thread starting");
+            while (isRunning.get()) {
+                batch.clear();
+                try {
+                    if (drainQueue(batch, BATCH_SIZE) == 0) {
+                        QueuedEvent event = pollQueue(IDLE_WAKEUP_MILLIS, TimeUnit.MILLISECONDS);
+                        if (event == null)
+                            continue;
+                        batch.add(event);
+                    }
+                    connect();
+                    GELFCodec codec = codec();
+                    for (int i = 0; i < batch.size(); i++)
+                        send(batch.set(i, null), codec);
+                } catch (Exception e) {
+                    debug(e, "exception on sender loop");
+                } finally {
+                    completed(batch.size());
+                }
+            }
+            close();
+            out.close();
+            if (compressor != null) {
+                compressor.end();
+                compressed.close();
+            }
+        }
+
+        private void send(QueuedEvent event, GELFCodec codec) {
+            out.reset();
+            if (!encode(event, codec, out))
+                return;
+            if (channel == null) {
+                unsent.incrementAndGet();
+                return;
+            }
+            // A datagram carries one message, so it needs no NUL terminator.
+            long length = out.size() - 1;
+            ByteBuffersOutputStream message = out;
+            if (compressor != null && length >= compressionThreshold) {
+                compressed.reset();
+                compressor.compress(out.readableBuffers(), out.slabCount(), length, compressed);
+                message = compressed;
+                length = compressed.size();
+            }
+            try {
+                int sent = chunker.send(channel, message.readableBuffers(), message.slabCount(), length, messageIds++);
+                if (sent == 0) {
+                    debug("dropping a %d byte message; it needs more than %d chunks", length, GELFChunker.MAX_CHUNKS);
+                    droppedOversize.incrementAndGet();
+                } else {
+                    datagrams.addAndGet(sent);
+                    metrics.sent.increment();
+                    metrics.bytesWritten.add(length);
+                    metrics.written(event.enqueuedNanos());
+                }
+            } catch (IOException e) {
+                // Such as PortUnreachableException, after an ICMP reply to an earlier datagram.
+                debug(e, "send failed");
+                unsent.incrementAndGet();
+                close();
+                resolveAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECONNECT_DELAY_MILLIS);
+            }
+        }
+
+        /**
+         * Resolve the host and connect the channel once the TTL or the retry
+         * delay has run out, or the host or port changed.
+         */
+        private void connect() {
+            long now = System.nanoTime();
+            if (!retarget && now - resolveAt < 0)
+                return;
+            retarget = false;
+            close();
+            try {
+                debug("resolving %s...", host);
+                InetAddress address = InetAddress.getByName(host);
+                DatagramChannel fresh = DatagramChannel.open();
+                try {
+                    fresh.connect(new InetSocketAddress(address, port));
+                } catch (IOException e) {
+                    fresh.close();
+                    throw e;
+                }
+                channel = fresh;
+                if (everConnected)
+                    metrics.reconnects.increment();
+                everConnected = true;
+                complainedAboutUnknownHost = false;
+                resolveAt = now + TimeUnit.SECONDS.toNanos(ttlSeconds);
+                debug("GELF UDP sending to %s:%d", address, port);
+            } catch (UnknownHostException e) {
+                metrics.connectFailures.increment();
+                if (!complainedAboutUnknownHost) {
+                    addError("Unknown host: " + host);
+                    complainedAboutUnknownHost = true;
+                }
+                resolveAt = now + TimeUnit.MILLISECONDS.toNanos(UNKNOWN_HOST_RETRY_MILLIS);
+            } catch (IOException e) {
+                debug(e, "exception caught connecting: %s", e);
+                metrics.connectFailures.increment();
+                resolveAt = now + TimeUnit.MILLISECONDS.toNanos(RECONNECT_DELAY_MILLIS);
+            }
+        }
+
+        private void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // pass
+                }
+                channel = null;
+            }
+        }
+    }
+
+    private static final int BATCH_SIZE = 128;
+    private static final long IDLE_WAKEUP_MILLIS = 250;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final long UNKNOWN_HOST_RETRY_MILLIS = 60000;
+
+    private int maxChunkSize = 8192;
+    private volatile boolean retarget;
+    // Only used by the sender thread; starts at random so ids differ between hosts.
+    private long messageIds = new Random().nextLong();
+    private final AtomicLong datagrams = new AtomicLong();
+    private final AtomicLong droppedOversize = new AtomicLong();
+    private final AtomicLong unsent = new AtomicLong();
+    private Thread senderThread;
+
+    @Override
+    boolean startTransport() {
+        retarget = true;
+        senderThread = new Thread(new Sender(), "GELF-UDP-Sender");
+        senderThread.setDaemon(true);
+        senderThread.start();
+        return true;
+    }
+
+    @Override
+    void stopTransport() {
+        join(senderThread);
+        senderThread = null;
+    }
+
+    @Override
+    void targetChanged() {
+        retarget = true;
+    }
+
+    /**
+     * The largest datagram to send, including the 12-byte chunk header. Larger
+     * messages are split into up to 128 chunks of this size. Takes effect at start.
+     */
+    public void setMaxChunkSize(int maxChunkSize) {
+        debug("setting maxChunkSize: %s", maxChunkSize);
+        if (maxChunkSize <= GELFChunker.HEADER_SIZE || maxChunkSize > 65507)
+            throw new IllegalArgumentException("maxChunkSize must be between 13 and 65507");
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * @return The number of datagrams sent.
+     */
+    public long getDatagramCount() {
+        return datagrams.get();
+    }
+
+    /**
+     * @return The number of messages dropped for needing more than 128 chunks.
+     */
+    public long getDroppedOversizeCount() {
+        return droppedOversize.get();
+    }
+
+    /**
+     * @return The number of messages that couldn't be sent, for want of an
+     *   address or because the send failed.
+     */
+    public long getUnsentCount() {
+        return unsent.get();
+    }
+}
@@ -0,0 +1,132 @@
+package org.metastatic.gelfback;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent log-linear histogram of non-negative longs, such as latencies
+ * in nanoseconds. Each power of two is split into 32 equal buckets, so a
+ * recorded value is reported to within about 3%; values of 2^40 (about 18
+ * minutes in nanoseconds) and up share the last bucket.
+ *
+ * Recording is a couple of shifts and an uncontended increment: each thread
+ * is given a probe when it first records, and the probe picks one of at least
+ * as many stripes as there are CPUs, so threads recording similar values
+ * don't fight over the same counter. Each stripe keeps its own maximum too.
+ * A stripe is only allocated once a thread records into it. Reading sums the
+ * stripes, and is only as consistent as that.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+    // The slot after the buckets holds the stripe's maximum.
+    private static final int MAX = BUCKETS;
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+    private static final AtomicInteger nextProbe = new AtomicInteger();
+    private static final ThreadLocal<int[]> probe = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[] { nextProbe.getAndIncrement() };
+        }
+    };
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+    private final LongAdder total = new LongAdder();
+
+    private AtomicLongArray stripe() {
+        int i = probe.get()[0] & (STRIPES - 1);
+        AtomicLongArray stripe = stripes.get(i);
+        if (stripe == null) {
+            stripes.compareAndSet(i, null, new AtomicLongArray(BUCKETS + 1));
+            stripe = stripes.get(i);
+        }
+        return stripe;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return The largest value that falls in a bucket.
+     */
+    private static long highestIn(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        if (index == BUCKETS - 1)
+            return Long.MAX_VALUE;
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long low = (1L << exponent) + (sub << (exponent - SUB_BITS));
+        return low + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    void record(long value) {
+        if (value < 0)
+            value = 0;
+        AtomicLongArray stripe = stripe();
+        stripe.incrementAndGet(index(value));
+        total.increment();
+        // Only write when there's a new maximum, which soon becomes rare.
+        long m;
+        while (value > (m = stripe.get(MAX)) && !stripe.compareAndSet(MAX, m, value))
+            ;
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long max() {
+        long max = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe != null)
+                max = Math.max(max, stripe.get(MAX));
+        }
+        return max;
+    }
+
+    /**
+     * @param percentile From 0 to 100.
+     * @return A value at least as large as that percentage of recorded values,
+     *   within the bucket precision; zero if nothing was recorded.
+     */
+    long percentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        long max = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            AtomicLongArray stripe = stripes.get(s);
+            if (stripe == null)
+                continue;
+            max = Math.max(max, stripe.get(MAX));
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = stripe.get(i);
+                counts[i] += c;
+                n += c;
+            }
+        }
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestIn(i), max);
+        }
+        return max;
+    }
+}
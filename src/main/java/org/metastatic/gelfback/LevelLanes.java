@@ -0,0 +1,238 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The appender's queue: either one {@link MpscRingBuffer}, or one per syslog
+ * level the codec maps events to (error, warning, informational and debug),
+ * each with its own capacity.
+ *
+ * Producers add to the lane for their event's level, so a flood of debug
+ * events fills only the debug lane and can never evict or crowd out errors.
+ * The consumer takes from the lanes by weighted round robin: up to the lane's
+ * weight in events from each lane in turn, errors first. Under a backlog,
+ * errors and warnings jump ahead of queued debug lines, while the lower
+ * lanes still get their share. Events in the same lane stay in order.
+ */
+final class LevelLanes {
+    static final int ERROR = 0;
+    static final int WARN = 1;
+    static final int INFO = 2;
+    static final int DEBUG = 3;
+    static final int LANES = 4;
+
+    private final MpscRingBuffer<QueuedEvent>[] lanes;
+    private final int[] weights;
+    private final WaitStrategy waitStrategy;
+
+    // Consumer state: the lane being taken from, and how many more events it may give.
+    private int lane;
+    private int credit;
+
+    /**
+     * A single lane, for when events aren't split by level.
+     */
+    LevelLanes(int capacity, WaitStrategy waitStrategy) {
+        this.lanes = newLanes(1);
+        lanes[0] = new MpscRingBuffer<>(capacity, waitStrategy);
+        this.weights = new int[] { 1 };
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * One lane per level.
+     *
+     * @param capacities The capacity of each lane, indexed by {@link #ERROR} to {@link #DEBUG}.
+     * @param weights How many events to take from each lane per turn.
+     */
+    LevelLanes(int[] capacities, int[] weights, WaitStrategy waitStrategy) {
+        if (capacities.length != LANES || weights.length != LANES)
+            throw new IllegalArgumentException("need a capacity and weight for each of " + LANES + " lanes");
+        this.lanes = newLanes(LANES);
+        for (int i = 0; i < LANES; i++) {
+            if (weights[i] <= 0)
+                throw new IllegalArgumentException("lane weights must be positive");
+            lanes[i] = new MpscRingBuffer<>(capacities[i], waitStrategy);
+        }
+        this.weights = weights.clone();
+        this.credit = weights[0];
+        this.waitStrategy = waitStrategy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MpscRingBuffer<QueuedEvent>[] newLanes(int n) {
+        return (MpscRingBuffer<QueuedEvent>[]) new MpscRingBuffer<?>[n];
+    }
+
+    static int laneOf(Level level) {
+        switch (GELFCodec.mapLevelToSyslog(level)) {
+            case GELFCodec.SYSLOG_ERROR:
+                return ERROR;
+            case GELFCodec.SYSLOG_WARN:
+                return WARN;
+            case GELFCodec.SYSLOG_INFO:
+                return INFO;
+            default:
+                return DEBUG;
+        }
+    }
+
+    /**
+     * @return The lane that events at a level go to; producers offer to it,
+     *   and may poll it to evict its oldest event.
+     */
+    MpscRingBuffer<QueuedEvent> laneFor(Level level) {
+        return lanes.length == 1 ? lanes[0] : lanes[laneOf(level)];
+    }
+
+    /**
+     * Evict the oldest event from the lowest non-empty lane at or below a
+     * level's, to make room for an event at that level. Producers may call this.
+     *
+     * @return The evicted event, or null if those lanes are all empty.
+     */
+    QueuedEvent pollLowest(Level level) {
+        if (lanes.length == 1)
+            return lanes[0].poll();
+        for (int i = DEBUG; i >= laneOf(level); i--) {
+            QueuedEvent e = lanes[i].poll();
+            if (e != null)
+                return e;
+        }
+        return null;
+    }
+
+    /**
+     * @return True if events are split into a lane per level.
+     */
+    boolean isSplit() {
+        return lanes.length > 1;
+    }
+
+    /**
+     * @return The approximate number of events in a lane; zero if events
+     *   aren't split by level.
+     */
+    int depth(int lane) {
+        return lanes.length > 1 ? lanes[lane].size() : 0;
+    }
+
+    /**
+     * @return The approximate number of events in all lanes.
+     */
+    int size() {
+        int n = 0;
+        for (MpscRingBuffer<QueuedEvent> l : lanes)
+            n += l.size();
+        return n;
+    }
+
+    /**
+     * Take the next event by weighted round robin. Never blocks. Only the
+     * consumer thread may call this.
+     */
+    QueuedEvent poll() {
+        if (lanes.length == 1)
+            return lanes[0].poll();
+        for (int i = 0; i <= LANES; i++) {
+            if (credit > 0) {
+                QueuedEvent e = lanes[lane].poll();
+                if (e != null) {
+                    credit--;
+                    return e;
+                }
+            }
+            lane = (lane + 1) % LANES;
+            credit = weights[lane];
+        }
+        return null;
+    }
+
+    /**
+     * Move up to max events into a list, in the order {@link #poll()} takes
+     * them. Never blocks. Only the consumer thread may call this.
+     *
+     * @return The number of events moved.
+     */
+    int drainTo(List<QueuedEvent> into, int max) {
+        if (lanes.length == 1)
+            return lanes[0].drainTo(into, max);
+        int n = 0;
+        QueuedEvent e;
+        while (n < max && (e = poll()) != null) {
+            into.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Take the next event, waiting up to the given time with the configured
+     * strategy. Only the consumer thread may call this.
+     *
+     * @return The event, or null if the timeout elapsed.
+     */
+    QueuedEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (lanes.length == 1)
+            return lanes[0].poll(timeout, unit);
+        QueuedEvent e = poll();
+        if (e != null)
+            return e;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (waitStrategy == WaitStrategy.SPIN_THEN_PARK) {
+            for (int i = 0; i < MpscRingBuffer.SPIN_TRIES; i++) {
+                if ((e = poll()) != null)
+                    return e;
+            }
+        }
+        while (true) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return null;
+            if (waitStrategy == WaitStrategy.SLEEP) {
+                LockSupport.parkNanos(this, Math.min(remaining, MpscRingBuffer.SLEEP_NANOS));
+            } else {
+                Thread current = Thread.currentThread();
+                for (MpscRingBuffer<QueuedEvent> l : lanes)
+                    l.setWaiter(current);
+                try {
+                    // Re-check after publishing ourselves, as MpscRingBuffer does.
+                    if ((e = poll()) != null)
+                        return e;
+                    LockSupport.parkNanos(this, remaining);
+                } finally {
+                    for (MpscRingBuffer<QueuedEvent> l : lanes)
+                        l.setWaiter(null);
+                }
+            }
+            if ((e = poll()) != null)
+                return e;
+        }
+    }
+
+    /**
+     * @return The number of events ever added to any lane.
+     */
+    long producedCount() {
+        long n = 0;
+        for (MpscRingBuffer<QueuedEvent> l : lanes)
+            n += l.producedCount();
+        return n;
+    }
+
+    /**
+     * @return The number of events ever removed from any lane.
+     */
+    long consumedCount() {
+        long n = 0;
+        for (MpscRingBuffer<QueuedEvent> l : lanes)
+            n += l.consumedCount();
+        return n;
+    }
+}
@@ -0,0 +1,245 @@
+package org.metastatic.gelfback;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring buffer for many producers and one consumer.
+ *
+ * Slots are preallocated, and each carries a sequence number that says whether
+ * it is free for the producer claiming a given position or holds an element for
+ * the consumer (Vyukov's bounded queue). Producers claim a position with a single
+ * CAS and never take a lock. The head is also claimed by CAS, so besides the one
+ * consumer, producers may {@link #poll()} to evict the oldest element.
+ *
+ * The enqueue and dequeue positions are monotonic sequence counters, exposed
+ * through {@link #producedCount()} and {@link #consumedCount()}.
+ *
+ * @param <E> The element type.
+ */
+final class MpscRingBuffer<E> {
+    static final int SPIN_TRIES = 1000;
+    static final long SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BLOCKED_PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final WaitStrategy waitStrategy;
+    private volatile Thread waiter;
+
+    /**
+     * @param capacity The minimum capacity; rounded up to a power of two, and at least two.
+     * @param waitStrategy How {@link #take()} and {@link #poll(long, TimeUnit)} wait.
+     */
+    MpscRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || capacity > (1 << 30))
+            throw new IllegalArgumentException("capacity must be positive and at most 2^30");
+        // A single slot can't tell "full" from "empty" by its sequence number.
+        int size = Math.max(2, Integer.highestOneBit(capacity));
+        if (size < capacity)
+            size <<= 1;
+        slots = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Add an element if there is room. Never blocks.
+     *
+     * @return False if the buffer is full.
+     */
+    boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        int index = (int) pos & mask;
+        slots.lazySet(index, e);
+        // A volatile store, so the read of waiter below can't be reordered before it.
+        sequences.set(index, pos + 1);
+        Thread w = waiter;
+        if (w != null)
+            LockSupport.unpark(w);
+        return true;
+    }
+
+    /**
+     * Add an element, waiting up to the given time for room.
+     *
+     * @return False if the buffer was still full when the timeout elapsed.
+     */
+    boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (offer(e))
+            return true;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            LockSupport.parkNanos(this, Math.min(remaining, BLOCKED_PRODUCER_PARK_NANOS));
+            if (offer(e))
+                return true;
+        }
+    }
+
+    /**
+     * Remove the oldest element, if there is one. Never blocks.
+     */
+    E poll() {
+        long pos = head.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1))
+                    break;
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+        int index = (int) pos & mask;
+        E e = slots.get(index);
+        slots.lazySet(index, null);
+        sequences.lazySet(index, pos + mask + 1);
+        return e;
+    }
+
+    /**
+     * Remove up to max elements into a collection. Never blocks.
+     *
+     * @return The number of elements moved.
+     */
+    int drainTo(Collection<? super E> c, int max) {
+        int n = 0;
+        E e;
+        while (n < max && (e = poll()) != null) {
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Remove the oldest element, waiting with the configured strategy until there is one.
+     * Only the single consumer thread may call this.
+     */
+    E take() throws InterruptedException {
+        E e;
+        while ((e = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null)
+            ;
+        return e;
+    }
+
+    /**
+     * Remove the oldest element, waiting up to the given time with the configured
+     * strategy. Only the single consumer thread may call this.
+     *
+     * @return The element, or null if the timeout elapsed.
+     */
+    E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E e = poll();
+        if (e != null)
+            return e;
+        // May overflow for huge timeouts; deadline - nanoTime() is still right.
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (waitStrategy == WaitStrategy.SPIN_THEN_PARK) {
+            for (int i = 0; i < SPIN_TRIES; i++) {
+                if ((e = poll()) != null)
+                    return e;
+            }
+        }
+        while (true) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return null;
+            if (waitStrategy == WaitStrategy.SLEEP) {
+                LockSupport.parkNanos(this, Math.min(remaining, SLEEP_NANOS));
+            } else {
+                waiter = Thread.currentThread();
+                try {
+                    // Re-check after publishing ourselves, so a producer that missed us
+                    // has already made its element visible.
+                    if ((e = poll()) != null)
+                        return e;
+                    LockSupport.parkNanos(this, remaining);
+                } finally {
+                    waiter = null;
+                }
+            }
+            if ((e = poll()) != null)
+                return e;
+        }
+    }
+
+    /**
+     * Have producers unpark a thread once they add an element, so a consumer
+     * can wait on several buffers at once; null to stop.
+     */
+    void setWaiter(Thread waiter) {
+        this.waiter = waiter;
+    }
+
+    /**
+     * @return The approximate number of elements in the buffer.
+     */
+    int size() {
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(t - h, capacity()));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int remainingCapacity() {
+        return capacity() - size();
+    }
+
+    /**
+     * @return The number of elements ever added.
+     */
+    long producedCount() {
+        return tail.get();
+    }
+
+    /**
+     * @return The number of elements ever removed.
+     */
+    long consumedCount() {
+        return head.get();
+    }
+}
@@ -0,0 +1,31 @@
+package org.metastatic.gelfback;
+
+/**
+ * What an appender does with a new event when its queue is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Discard the event being logged.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Discard the oldest queued event to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Wait up to the configured block timeout for room, then discard the
+     * event being logged.
+     */
+    BLOCK,
+
+    /**
+     * Discard events below the configured level threshold once the queue is
+     * mostly full, keeping the remaining room for more important events. If
+     * the queue is completely full, an event at or above the threshold
+     * replaces the oldest queued event. With level lanes, each lane holds one
+     * level, so only the byte budget keeps room back.
+     */
+    DROP_BELOW_LEVEL
+}
@@ -0,0 +1,33 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+
+import java.io.OutputStream;
+
+/**
+ * Something waiting in an appender's queue to be sent: either a log event to
+ * be encoded later, or one already encoded on the thread that logged it.
+ */
+interface QueuedEvent {
+    Level getLevel();
+
+    String getThreadName();
+
+    /**
+     * @return Roughly how many bytes of heap this event holds on to while queued.
+     */
+    int estimatedSize();
+
+    /**
+     * @return When the event was queued, by {@link System#nanoTime()}.
+     */
+    long enqueuedNanos();
+
+    /**
+     * Write this event as framed GELF to an output stream.
+     *
+     * @param codec The codec to encode with, if the event isn't encoded yet.
+     * @param out The stream to write to.
+     */
+    void writeFramed(GELFCodec codec, OutputStream out);
+}
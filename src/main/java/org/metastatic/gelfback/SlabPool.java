@@ -0,0 +1,74 @@
+package org.metastatic.gelfback;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of equally-sized byte buffers ("slabs"), shared by
+ * {@link ByteBuffersOutputStream}s so that encoding an event doesn't allocate
+ * new buffers once the pool has warmed up.
+ *
+ * Slabs are taken with {@link #acquire()} and handed back with {@link #release(ByteBuffer)}
+ * after their contents have been written out. If the pool is full, released slabs are
+ * simply dropped for the garbage collector.
+ */
+public class SlabPool {
+    private final BlockingQueue<ByteBuffer> free;
+    private final int slabSize;
+    private final boolean direct;
+
+    /**
+     * @param slabSize The size of each slab, in bytes.
+     * @param maxPooled The maximum number of idle slabs kept in the pool.
+     * @param direct If true, allocate direct buffers instead of heap buffers.
+     */
+    public SlabPool(int slabSize, int maxPooled, boolean direct) {
+        if (slabSize <= 0)
+            throw new IllegalArgumentException("slabSize must be positive");
+        if (maxPooled <= 0)
+            throw new IllegalArgumentException("maxPooled must be positive");
+        this.free = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+        this.slabSize = slabSize;
+        this.direct = direct;
+    }
+
+    public int slabSize() {
+        return slabSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return The number of idle slabs currently held by the pool.
+     */
+    public int available() {
+        return free.size();
+    }
+
+    /**
+     * Take a cleared slab from the pool, allocating one if the pool is empty.
+     *
+     * @return A buffer of {@link #slabSize()} bytes, ready for writing.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer b = free.poll();
+        if (b != null)
+            return b;
+        return direct ? ByteBuffer.allocateDirect(slabSize) : ByteBuffer.allocate(slabSize);
+    }
+
+    /**
+     * Return a slab to the pool. Buffers of the wrong size or kind are ignored.
+     *
+     * @param b The buffer; the caller must not use it afterwards.
+     */
+    public void release(ByteBuffer b) {
+        if (b.capacity() != slabSize || b.isDirect() != direct || b.isReadOnly())
+            return;
+        b.clear();
+        free.offer(b);
+    }
+}
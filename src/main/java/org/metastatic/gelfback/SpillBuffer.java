@@ -0,0 +1,280 @@
+package org.metastatic.gelfback;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An append-only, on-disk overflow for encoded GELF frames, kept in fixed-size
+ * memory-mapped segment files.
+ *
+ * Each record is a 4-byte length followed by that many bytes of framed GELF
+ * (one or more NUL-terminated messages). A length of zero marks the end of a
+ * segment's data. Records handed out for sending stay as they are until the
+ * sender acknowledges that they were written; only then are their lengths
+ * negated, so a restart doesn't send them again, and segments whose records
+ * have all been acknowledged are deleted. A crash before then sends them again
+ * rather than losing them.
+ *
+ * Not thread-safe; the sender thread owns it.
+ */
+final class SpillBuffer {
+    private static final Pattern SEGMENT_NAME = Pattern.compile("gelf-(\\d{20})\\.spill");
+    private static final int HEADER = 4;
+
+    private static final class Segment {
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        // The first record not yet acknowledged, and the next one to hand out.
+        int readPos;
+        int replayPos;
+        int writePos;
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                this.channel = raf.getChannel();
+                this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        boolean hasUnread() {
+            return readPos < writePos;
+        }
+
+        boolean hasUnreplayed() {
+            return replayPos < writePos;
+        }
+
+        void delete() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // pass
+            }
+            if (!file.delete())
+                file.deleteOnExit();
+        }
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private long nextSequence;
+    private volatile long pendingBytes;
+    // True if the last segment takes no more appends.
+    private boolean sealed;
+
+    /**
+     * Open a spill directory, recovering any records not yet replayed.
+     *
+     * @param directory The directory holding segment files; created if missing.
+     * @param segmentBytes The size of each segment file.
+     * @param maxBytes The most disk space all segments together may use.
+     */
+    SpillBuffer(File directory, int segmentBytes, long maxBytes) throws IOException {
+        if (segmentBytes <= HEADER)
+            throw new IllegalArgumentException("segmentBytes is too small");
+        if (maxBytes < segmentBytes)
+            throw new IllegalArgumentException("maxBytes must hold at least one segment");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("can't create spill directory " + directory);
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        recover();
+    }
+
+    /**
+     * Scan existing segments, hopping from record header to record header, to
+     * find the first unreplayed record and the end of each segment's data.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return SEGMENT_NAME.matcher(name).matches();
+            }
+        });
+        if (files == null)
+            throw new IOException("can't list spill directory " + directory);
+        Arrays.sort(files);
+        for (File file : files) {
+            Matcher m = SEGMENT_NAME.matcher(file.getName());
+            m.matches();
+            long sequence = Long.parseLong(m.group(1));
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            int size = (int) Math.min(file.length(), Integer.MAX_VALUE);
+            if (size <= HEADER) {
+                file.delete();
+                continue;
+            }
+            Segment segment = new Segment(file, size);
+            int pos = 0;
+            int firstUnread = -1;
+            while (pos + HEADER <= size) {
+                int length = segment.map.getInt(pos);
+                if (length == 0 || pos + HEADER + Math.abs((long) length) > size)
+                    break;
+                if (length > 0 && firstUnread < 0)
+                    firstUnread = pos;
+                pos += HEADER + Math.abs(length);
+            }
+            if (firstUnread < 0) {
+                segment.delete();
+                continue;
+            }
+            segment.readPos = firstUnread;
+            segment.replayPos = firstUnread;
+            segment.writePos = pos;
+            pendingBytes += pos - firstUnread;
+            segments.addLast(segment);
+        }
+        // Recovered segments are only read; new records start a fresh segment.
+        sealed = true;
+    }
+
+    /**
+     * @return True if every record has been replayed and acknowledged.
+     */
+    boolean isEmpty() {
+        return pendingBytes == 0;
+    }
+
+    /**
+     * @return The number of record bytes not yet replayed and acknowledged.
+     */
+    long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return The disk space currently taken by segment files.
+     */
+    long diskBytes() {
+        return (long) segments.size() * segmentBytes;
+    }
+
+    /**
+     * Append the contents of a stream as one record.
+     *
+     * @return False if the record is larger than a segment or the disk cap is reached;
+     *   the data is not spilled.
+     */
+    boolean append(ByteBuffersOutputStream data) throws IOException {
+        long size = data.size();
+        if (size == 0)
+            return true;
+        if (size > segmentBytes - HEADER)
+            return false;
+        Segment tail = sealed ? null : segments.peekLast();
+        if (tail == null || tail.writePos + HEADER + size > segmentBytes) {
+            if (diskBytes() + segmentBytes > maxBytes)
+                return false;
+            long sequence = nextSequence++;
+            tail = new Segment(new File(directory, String.format("gelf-%020d.spill", sequence)), segmentBytes);
+            segments.addLast(tail);
+            sealed = false;
+        }
+        ByteBuffer dst = tail.map.duplicate();
+        dst.position(tail.writePos + HEADER);
+        ByteBuffer[] src = data.readableBuffers();
+        for (int i = 0; i < data.slabCount(); i++)
+            dst.put(src[i]);
+        // The length goes in last, so a half-written record reads as the end of data.
+        tail.map.putInt(tail.writePos, (int) size);
+        tail.writePos += HEADER + (int) size;
+        pendingBytes += HEADER + size;
+        return true;
+    }
+
+    /**
+     * Copy the oldest records not yet handed out into a stream. They stay on
+     * disk, and are only marked as replayed by {@link #acknowledge()}.
+     *
+     * @param out The stream.
+     * @param budget Stop once about this many bytes have been copied, so other
+     *   work can interleave. At least one record is copied, if there is one.
+     * @return The number of record bytes copied.
+     */
+    long replayTo(ByteBuffersOutputStream out, long budget) {
+        long copied = 0;
+        for (Segment segment : segments) {
+            while (copied < budget && segment.hasUnreplayed()) {
+                int length = segment.map.getInt(segment.replayPos);
+                if (length > 0) {
+                    ByteBuffer record = segment.map.duplicate();
+                    record.position(segment.replayPos + HEADER);
+                    record.limit(segment.replayPos + HEADER + length);
+                    out.write(record);
+                    copied += length;
+                }
+                segment.replayPos += HEADER + Math.abs(length);
+            }
+            if (copied >= budget)
+                break;
+        }
+        return copied;
+    }
+
+    /**
+     * Mark every record handed out by {@link #replayTo} as replayed, now that
+     * it has been written, and delete segments that have been used up.
+     */
+    void acknowledge() {
+        for (Segment segment : segments) {
+            while (segment.readPos < segment.replayPos) {
+                int length = segment.map.getInt(segment.readPos);
+                if (length > 0)
+                    segment.map.putInt(segment.readPos, -length);
+                segment.readPos += HEADER + Math.abs(length);
+                pendingBytes -= HEADER + Math.abs(length);
+            }
+        }
+        Segment head;
+        while ((head = segments.peekFirst()) != null && !head.hasUnread()
+                && (head != segments.peekLast() || sealed)) {
+            segments.removeFirst();
+            head.delete();
+        }
+    }
+
+    /**
+     * Forget that the records handed out since the last {@link #acknowledge()}
+     * were handed out, so the next {@link #replayTo} copies them again.
+     */
+    void rewind() {
+        for (Segment segment : segments)
+            segment.replayPos = segment.readPos;
+    }
+
+    /**
+     * Flush mapped segments to disk and release them. Unreplayed records are kept
+     * for the next start.
+     */
+    void close() {
+        for (Segment segment : segments) {
+            segment.map.force();
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                // pass
+            }
+        }
+        segments.clear();
+    }
+}
@@ -0,0 +1,130 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.pattern.ThrowableProxyConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of rendered stack traces, as quoted and escaped JSON
+ * strings, keyed by the structure of the throwable: its class, message,
+ * frames, suppressed throwables and causes.
+ *
+ * The same exception logged over and over from a retry loop has a new
+ * throwable each time, but the same structure, so it is rendered and escaped
+ * once. Fingerprinting a throwable walks its frames without formatting
+ * anything, which is much cheaper than rendering it. Thread-safe.
+ */
+final class StackTraceCache {
+    /**
+     * A throwable compared by structure rather than identity.
+     */
+    private static final class Key {
+        private final IThrowableProxy proxy;
+        private final int hash;
+
+        Key(IThrowableProxy proxy) {
+            this.proxy = proxy;
+            this.hash = hash(proxy);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).hash == hash && same(proxy, ((Key) o).proxy);
+        }
+
+        private static int hash(IThrowableProxy p) {
+            int h = 1;
+            for (; p != null; p = p.getCause()) {
+                h = 31 * h + p.getClassName().hashCode();
+                h = 31 * h + (p.getMessage() != null ? p.getMessage().hashCode() : 0);
+                h = 31 * h + Arrays.hashCode(p.getStackTraceElementProxyArray());
+                h = 31 * h + p.getCommonFrames();
+                IThrowableProxy[] suppressed = p.getSuppressed();
+                if (suppressed != null) {
+                    for (IThrowableProxy s : suppressed)
+                        h = 31 * h + hash(s);
+                }
+            }
+            return h;
+        }
+
+        private static boolean same(IThrowableProxy a, IThrowableProxy b) {
+            for (; a != null && b != null; a = a.getCause(), b = b.getCause()) {
+                if (a == b)
+                    return true;
+                if (!a.getClassName().equals(b.getClassName())
+                        || (a.getMessage() == null ? b.getMessage() != null : !a.getMessage().equals(b.getMessage()))
+                        || a.getCommonFrames() != b.getCommonFrames()
+                        || !Arrays.equals(a.getStackTraceElementProxyArray(), b.getStackTraceElementProxyArray()))
+                    return false;
+                IThrowableProxy[] as = a.getSuppressed();
+                IThrowableProxy[] bs = b.getSuppressed();
+                int n = as != null ? as.length : 0;
+                if (n != (bs != null ? bs.length : 0))
+                    return false;
+                for (int i = 0; i < n; i++) {
+                    if (!same(as[i], bs[i]))
+                        return false;
+                }
+            }
+            return a == b;
+        }
+    }
+
+    private final Map<Key, byte[]> traces;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    StackTraceCache(final int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("maxSize must be positive");
+        this.traces = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the rendered stack trace of an event's throwable, rendering it with
+     * the converter if it isn't cached.
+     *
+     * @return The trace as a quoted JSON string; don't modify it.
+     */
+    byte[] get(ILoggingEvent event, ThrowableProxyConverter converter) {
+        Key key = new Key(event.getThrowableProxy());
+        byte[] trace;
+        synchronized (traces) {
+            trace = traces.get(key);
+        }
+        if (trace != null) {
+            hits.incrementAndGet();
+            return trace;
+        }
+        misses.incrementAndGet();
+        trace = GELFJsonWriter.quoted(converter.convert(event));
+        synchronized (traces) {
+            traces.put(key, trace);
+        }
+        return trace;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+}
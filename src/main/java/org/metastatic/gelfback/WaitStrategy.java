@@ -0,0 +1,24 @@
+package org.metastatic.gelfback;
+
+/**
+ * How the consumer of an {@link MpscRingBuffer} waits for events when the buffer is empty.
+ */
+public enum WaitStrategy {
+    /**
+     * Park the consumer thread right away; producers unpark it. Lowest CPU
+     * use, at the cost of an unpark on the logging thread after idle periods.
+     */
+    PARK,
+
+    /**
+     * Spin briefly before parking, so bursts are picked up without a
+     * park/unpark round trip.
+     */
+    SPIN_THEN_PARK,
+
+    /**
+     * Poll with short sleeps; producers never wake the consumer. Adds up
+     * to a millisecond of latency but keeps the logging path free of unparks.
+     */
+    SLEEP
+}
@@ -6,24 +6,73 @@ import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.classic.spi.LoggerContextVO;
 import org.slf4j.Marker;
 
+import java.io.OutputStream;
 import java.util.Map;
 
 /**
  * Wrapper for ILoggingEvent; since messages are formatted off the thread that logs
  * the message, stash the info specific to the thread in this object.
  */
-class WrappedLoggingEvent implements ILoggingEvent {
+class WrappedLoggingEvent implements ILoggingEvent, QueuedEvent {
     private final ILoggingEvent delegate;
     private final String threadName;
     private final StackTraceElement[] callerData;
+    private final int estimatedSize;
+    private final Map<String, ?> extraFields;
+    // LoggingEvent reads the MDC lazily, from whichever thread asks; this is
+    // the logging thread's.
+    private final Map<String, String> mdc;
+    private final long enqueuedNanos = System.nanoTime();
+
+    // The event objects themselves, plus the fixed fields of the JSON they become.
+    private static final int OVERHEAD = 256;
+    private static final int PER_ARGUMENT = 32;
+    private static final int PER_STACK_FRAME = 128;
 
     public WrappedLoggingEvent(ILoggingEvent delegate, boolean includeCallerData) {
+        this(delegate, includeCallerData, null);
+    }
+
+    /**
+     * @param extraFields Additional fields to send with the event, or null.
+     */
+    WrappedLoggingEvent(ILoggingEvent delegate, boolean includeCallerData, Map<String, ?> extraFields) {
         this.delegate = delegate;
+        this.extraFields = extraFields;
         this.threadName = delegate.getThreadName();
+        this.mdc = delegate.getMDCPropertyMap();
         if (includeCallerData)
             this.callerData = delegate.getCallerData();
         else
             this.callerData = new StackTraceElement[0];
+        this.estimatedSize = estimateSize(delegate, callerData.length, mdc);
+    }
+
+    /**
+     * A cheap estimate of the memory held by an event, from the lengths of its
+     * message, arguments, stack traces and MDC. Nothing is formatted.
+     */
+    private static int estimateSize(ILoggingEvent event, int callerFrames, Map<String, String> mdc) {
+        long size = OVERHEAD;
+        String message = event.getMessage();
+        if (message != null)
+            size += 2 * message.length();
+        Object[] args = event.getArgumentArray();
+        if (args != null)
+            size += PER_ARGUMENT * args.length;
+        for (IThrowableProxy t = event.getThrowableProxy(); t != null; t = t.getCause()) {
+            size += PER_STACK_FRAME * t.getStackTraceElementProxyArray().length;
+            String m = t.getMessage();
+            if (m != null)
+                size += 2 * m.length();
+        }
+        size += PER_STACK_FRAME * callerFrames;
+        if (mdc != null) {
+            for (Map.Entry<String, String> e : mdc.entrySet()) {
+                size += 2 * e.getKey().length() + (e.getValue() != null ? 2 * e.getValue().length() : 0) + PER_ARGUMENT;
+            }
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
     }
 
     public String getThreadName() {
@@ -71,11 +120,11 @@ class WrappedLoggingEvent implements ILoggingEvent {
     }
 
     public Map<String, String> getMDCPropertyMap() {
-        return delegate.getMDCPropertyMap();
+        return mdc;
     }
 
     public Map<String, String> getMdc() {
-        return delegate.getMdc();
+        return mdc;
     }
 
     public long getTimeStamp() {
@@ -85,4 +134,16 @@ class WrappedLoggingEvent implements ILoggingEvent {
     public void prepareForDeferredProcessing() {
         delegate.prepareForDeferredProcessing();
     }
+
+    public int estimatedSize() {
+        return estimatedSize;
+    }
+
+    public long enqueuedNanos() {
+        return enqueuedNanos;
+    }
+
+    public void writeFramed(GELFCodec codec, OutputStream out) {
+        codec.writeFramed(this, extraFields, out);
+    }
 }
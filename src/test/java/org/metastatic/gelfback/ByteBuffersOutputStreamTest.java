@@ -44,4 +44,107 @@ public class ByteBuffersOutputStreamTest {
             assertThat("the second buffer contains the three remaining elements", b2[i], is(b[7 + i]));
         }
     }
+
+    @Test
+    public void testWriteAfterToBuffers() {
+        ByteBuffersOutputStream out = new ByteBuffersOutputStream(4);
+        out.write('a');
+        ByteBuffer[] first = out.toBuffers();
+        out.write('b');
+        ByteBuffer[] second = out.toBuffers();
+        assertThat("the first view is unchanged", first[0].remaining(), is(1));
+        assertThat("the second view sees both bytes", second[0].remaining(), is(2));
+        assertThat("size counts both bytes", out.size(), is(2L));
+    }
+
+    @Test
+    public void testResetReusesSlabs() {
+        SlabPool pool = new SlabPool(4, 8, false);
+        ByteBuffersOutputStream out = new ByteBuffersOutputStream(pool);
+        ByteBuffer initial = out.readableBuffers()[0];
+        out.reset();
+        for (int i = 0; i < 10; i++)
+            out.write(i);
+        assertThat("ten bytes span three slabs", out.slabCount(), is(3));
+        out.reset();
+        assertThat("reset keeps one slab", out.slabCount(), is(1));
+        assertThat("reset returns the extra slabs to the pool", pool.available(), is(2));
+        assertThat("the initial slab is kept", out.readableBuffers()[0], sameInstance(initial));
+        out.reset();
+        out.write(new byte[] { 1, 2, 3, 4, 5 });
+        assertThat("extending takes a slab from the pool", pool.available(), is(1));
+        out.close();
+        assertThat("close returns every slab", pool.available(), is(3));
+    }
+
+    @Test
+    public void testReadableBuffers() {
+        ByteBuffersOutputStream out = new ByteBuffersOutputStream(4);
+        out.write(new byte[] { 0, 1, 2, 3, 4, 5 });
+        ByteBuffer[] buffers = out.readableBuffers();
+        assertThat("two slabs hold data", out.slabCount(), is(2));
+        assertThat("the first slab is full", buffers[0].remaining(), is(4));
+        assertThat("the second slab holds the rest", buffers[1].remaining(), is(2));
+        assertThat("flipping twice is harmless", out.readableBuffers()[1].remaining(), is(2));
+        assertThat("size is unchanged by flipping", out.size(), is(6L));
+    }
+
+    @Test
+    public void testPoolIgnoresForeignBuffers() {
+        SlabPool pool = new SlabPool(4, 8, false);
+        pool.release(ByteBuffer.allocate(5));
+        pool.release(ByteBuffer.allocateDirect(4));
+        assertThat("mismatched buffers are not pooled", pool.available(), is(0));
+        pool.release(ByteBuffer.allocate(4));
+        assertThat("matching buffers are pooled", pool.available(), is(1));
+    }
+
+    @Test
+    public void testDetach() {
+        SlabPool pool = new SlabPool(4, 8, false);
+        ByteBuffersOutputStream out = new ByteBuffersOutputStream(pool);
+        out.write(new byte[] { 1, 2, 3, 4, 5, 6 });
+        ByteBuffersOutputStream detached = out.detach();
+        assertThat("the contents move", detached.size(), is(6L));
+        assertThat("the stream is left empty", out.size(), is(0L));
+        out.write(7);
+        assertThat("the stream can be written again", out.size(), is(1L));
+        assertThat("the detached stream is unchanged", detached.toBuffers()[1].get(1), is((byte) 6));
+        int available = pool.available();
+        detached.close();
+        assertThat("closing returns the slabs", pool.available(), is(available + 2));
+    }
+
+    @Test
+    public void testWriteByteBuffer() {
+        ByteBuffersOutputStream out = new ByteBuffersOutputStream(4);
+        ByteBuffer src = ByteBuffer.wrap(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        src.position(1);
+        out.write(src);
+        assertThat("the source is consumed", src.hasRemaining(), is(false));
+        ByteBuffer[] buffers = out.toBuffers();
+        assertThat(out.size(), is(9L));
+        assertThat(buffers.length, is(3));
+        assertThat(buffers[2].get(0), is((byte) 9));
+    }
+
+    @Test
+    public void testTruncate() {
+        SlabPool pool = new SlabPool(4, 8, false);
+        ByteBuffersOutputStream out = new ByteBuffersOutputStream(pool);
+        out.write(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        out.truncate(5);
+        assertThat("the stream is cut short", out.size(), is(5L));
+        assertThat("the empty slab goes back to the pool", pool.available(), is(1));
+        out.write(new byte[] { 10, 11, 12 });
+        ByteBuffer[] buffers = out.toBuffers();
+        byte[] expected = new byte[] { 0, 1, 2, 3, 4, 10, 11, 12 };
+        int n = 0;
+        for (ByteBuffer b : buffers) {
+            while (b.hasRemaining()) {
+                assertThat("writes carry on from the truncation", b.get(), is(expected[n++]));
+            }
+        }
+        assertThat(n, is(expected.length));
+    }
 }
@@ -0,0 +1,91 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class EncoderPoolTest {
+    private EncoderPool pool;
+    private final GELFCodec codec = new GELFCodec("test", false, false);
+
+    @Before
+    public void setup() {
+        pool = new EncoderPool(3, EncoderOrdering.PER_THREAD, new SlabPool(AbstractGELFAppender.SLAB_SIZE, 16, false),
+                new GELFMetrics());
+    }
+
+    @After
+    public void teardown() {
+        pool.shutdown();
+    }
+
+    private static List<QueuedEvent> batch(String prefix, int n) {
+        List<QueuedEvent> batch = new ArrayList<QueuedEvent>();
+        for (int i = 0; i < n; i++) {
+            LoggingEvent event = new LoggingEvent();
+            event.setLevel(Level.INFO);
+            event.setMessage(prefix + " " + i);
+            event.setTimeStamp(978336000000L);
+            event.setLoggerName("TestLogger");
+            event.setThreadName("thread-" + (i % 6));
+            batch.add(new WrappedLoggingEvent(event, false));
+        }
+        return batch;
+    }
+
+    private static String text(ByteBuffersOutputStream chunk) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer[] slabs = chunk.readableBuffers();
+        for (int i = 0; i < chunk.slabCount(); i++) {
+            ByteBuffer slab = slabs[i].duplicate();
+            while (slab.hasRemaining())
+                out.write(slab.get());
+        }
+        return new String(out.toByteArray(), GELFJsonWriter.UTF8);
+    }
+
+    @Test
+    public void testSinkFailureDoesNotLeakIntoTheNextBatch() throws Exception {
+        try {
+            pool.encode(batch("first", 30), codec, new EncoderPool.Sink() {
+                public void write(ByteBuffersOutputStream chunk, int events) throws IOException {
+                    throw new IOException("sink failed");
+                }
+            });
+            fail("the sink's exception is passed on");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("sink failed"));
+        }
+        final List<String> messages = new ArrayList<String>();
+        final int[] events = new int[1];
+        pool.encode(batch("second", 30), codec, new EncoderPool.Sink() {
+            public void write(ByteBuffersOutputStream chunk, int n) {
+                events[0] += n;
+                for (String frame : text(chunk).split("\0")) {
+                    int start = frame.indexOf("\"short_message\":\"") + "\"short_message\":\"".length();
+                    messages.add(frame.substring(start, frame.indexOf('"', start)));
+                }
+            }
+        });
+        assertThat(events[0], is(30));
+        Collections.sort(messages);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 30; i++)
+            expected.add("second " + i);
+        Collections.sort(expected);
+        assertThat("each event of the second batch is written once", messages, is(expected));
+    }
+}
@@ -1,11 +1,14 @@
 package org.metastatic.gelfback;
 
+import ch.qos.logback.classic.LoggerContext;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by cmarshall on 6/10/15.
  */
@@ -32,17 +35,11 @@ public class GELFBasicIT {
     }
 
     @After
-    public void teardown() {
+    public void teardown() throws InterruptedException {
         // wait for stuff to get sent
-        int count = 0;
-        while (!GELFTCPAppender.drained() && count < 500) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-            }
-            count++;
-        }
-        if (!GELFTCPAppender.drained()) {
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        GELFTCPAppender appender = (GELFTCPAppender) context.getLogger(Logger.ROOT_LOGGER_NAME).getAppender("GELF-INT-TEST");
+        if (!appender.awaitDrained(50, TimeUnit.SECONDS)) {
             System.err.println("WARNING: gelf queue not drained; messages were probably not sent");
         }
     }
@@ -7,13 +7,21 @@ import ch.qos.logback.classic.spi.LoggingEvent;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import org.junit.Test;
+import org.slf4j.MarkerFactory;
 import org.slf4j.helpers.NOPLogger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertThat;
 import static org.hamcrest.CoreMatchers.*;
 
@@ -102,4 +110,314 @@ public class GELFCodecTest {
             dump(buffers);
         }
     }
+
+    /**
+     * The original Writer-based encoder, kept here to check the byte-level encoder against.
+     */
+    private static byte[] legacyFramed(String host, boolean includeCallerData, boolean includeStackTrace,
+                                       LoggingEvent event, Map<String, String> staticFields) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer w = new OutputStreamWriter(out, "UTF-8");
+        w.write("{\"version\":\"1.1\",\"level\":");
+        int level = event.getLevel().isGreaterOrEqual(Level.ERROR) ? 3 : event.getLevel().isGreaterOrEqual(Level.WARN) ? 4
+                : event.getLevel().isGreaterOrEqual(Level.INFO) ? 6 : 7;
+        w.write(Integer.toString(level));
+        w.write(",\"host\":");
+        legacyString(w, host);
+        w.write(',');
+        String message = event.getFormattedMessage();
+        if (message.indexOf('\n') > 0) {
+            w.write("\"full_message\":");
+            legacyString(w, message);
+            w.write(",\"short_message\":");
+            legacyString(w, message.substring(0, message.indexOf('\n')));
+            w.write(',');
+        } else {
+            w.write("\"short_message\":");
+            legacyString(w, message);
+            w.write(',');
+        }
+        if (event.getThrowableProxy() != null) {
+            if (includeStackTrace) {
+                ch.qos.logback.classic.pattern.ThrowableProxyConverter converter = new ch.qos.logback.classic.pattern.ThrowableProxyConverter();
+                converter.setOptionList(Collections.singletonList("full"));
+                converter.start();
+                w.write("\"_stack_trace\":");
+                legacyString(w, converter.convert(event));
+                w.write(',');
+            }
+            w.write("\"_exception\":");
+            legacyString(w, event.getThrowableProxy().getClassName() + ": " + event.getThrowableProxy().getMessage());
+            w.write(',');
+        }
+        w.write("\"timestamp\":");
+        legacyString(w, BigDecimal.valueOf(event.getTimeStamp()).divide(BigDecimal.valueOf(1000), BigDecimal.ROUND_DOWN).toPlainString());
+        w.write(",\"_logger\":");
+        legacyString(w, event.getLoggerName());
+        w.write(",\"_thread\":");
+        legacyString(w, event.getThreadName());
+        if (includeCallerData || event.hasCallerData()) {
+            StackTraceElement[] stack = event.getCallerData();
+            if (stack != null && stack.length > 0) {
+                w.write(",\"_file\":");
+                legacyString(w, stack[0].getFileName());
+                w.write(",\"_line\":");
+                w.write(Integer.toString(stack[0].getLineNumber()));
+                w.write(",\"_class\":");
+                legacyString(w, stack[0].getClassName());
+                w.write(",\"_method\":");
+                legacyString(w, stack[0].getMethodName());
+            }
+        }
+        for (Map.Entry<String, String> e : staticFields.entrySet()) {
+            w.write(',');
+            legacyString(w, "_" + e.getKey());
+            w.write(':');
+            legacyString(w, e.getValue());
+        }
+        w.write('}');
+        w.flush();
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    private static void legacyString(Writer w, String s) throws IOException {
+        w.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (Character.isISOControl(ch)) {
+                w.write(String.format("\\u%04x", (int) ch));
+            } else if (ch == '"' || ch == '\\') {
+                w.write('\\');
+                w.write(ch);
+            } else {
+                w.write(ch);
+            }
+        }
+        w.write('"');
+    }
+
+    private LoggingEvent event(String message, Object... args) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLevel(Level.INFO);
+        event.setMessage(message);
+        event.setArgumentArray(args);
+        event.setTimeStamp(978336000123L);
+        event.setLoggerName("TestLogger");
+        event.setThreadName("TestThread");
+        event.setCallerData(Thread.currentThread().getStackTrace());
+        return event;
+    }
+
+    private void assertSameAsLegacy(LoggingEvent event, Map<String, String> staticFields) throws IOException {
+        GELFCodec codec = new GELFCodec("test \u00e9\"host\"", true, true);
+        byte[] expected = legacyFramed("test \u00e9\"host\"", true, true, event, staticFields);
+        byte[] actual = glue(codec.framed(event, staticFields));
+        assertArrayEquals(expected, actual);
+        GELFCodec preEncoded = new GELFCodec("test \u00e9\"host\"", true, true, true, null, null, true, staticFields, false);
+        assertArrayEquals("pre-encoded static fields", expected, glue(preEncoded.framed(event)));
+    }
+
+    @Test
+    public void testIdenticalToLegacyBasic() throws IOException {
+        assertSameAsLegacy(event("test message, my integer: {}", 1234), Collections.<String, String>emptyMap());
+    }
+
+    @Test
+    public void testIdenticalToLegacyMultiLine() throws IOException {
+        assertSameAsLegacy(event("first line\nsecond line\r\n\tthird"), Collections.<String, String>emptyMap());
+    }
+
+    @Test
+    public void testIdenticalToLegacyEscapes() throws IOException {
+        StringBuilder all = new StringBuilder();
+        for (char c = 0; c < 0x200; c++)
+            all.append(c);
+        all.append("\"quoted\" back\\slash \u20ac \uffff \ud83d\ude00 lone \ud83d high, lone \ude00 low, trailing \ud83d");
+        assertSameAsLegacy(event(all.toString()), Collections.<String, String>emptyMap());
+    }
+
+    @Test
+    public void testIdenticalToLegacyStaticFields() throws IOException {
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        fields.put("application", "gelfback");
+        fields.put("we\"ird", "va\\lue \u00fc");
+        assertSameAsLegacy(event("with fields"), fields);
+    }
+
+    @Test
+    public void testIdenticalToLegacyThrowable() throws IOException {
+        LoggingEvent event = new LoggingEvent(GELFCodecTest.class.getName(), new LoggerContext().getLogger(getClass()),
+                Level.ERROR, "some error occurred: {}", new IllegalStateException("bam!\n\"nested\"", new RuntimeException()),
+                new Object[]{1234});
+        event.setCallerData(new StackTraceElement[] { new StackTraceElement("Cls", "method", "Cls.java", -2) });
+        assertSameAsLegacy(event, Collections.<String, String>emptyMap());
+    }
+
+    private JsonObject parse(GELFCodec codec, LoggingEvent event, Map<String, String> staticFields) throws IOException {
+        byte[] bytes = glue(codec.framed(event, staticFields));
+        return new Gson().fromJson(new String(bytes, 0, bytes.length - 1, "UTF-8"), JsonObject.class);
+    }
+
+    @Test
+    public void testMdcAndMarker() throws IOException {
+        LoggingEvent event = event("with MDC");
+        Map<String, String> mdc = new LinkedHashMap<String, String>();
+        mdc.put("requestId", "r-1");
+        mdc.put("tenant", "t\"1");
+        mdc.put("secret", "hunter2");
+        mdc.put("empty", null);
+        event.setMDCPropertyMap(mdc);
+        event.setMarker(MarkerFactory.getMarker("AUDIT"));
+        Map<String, String> fields = Collections.singletonMap("app", "gelfback");
+
+        JsonObject o = parse(new GELFCodec("test", false, false), event, fields);
+        assertThat("the legacy constructor sends no MDC", o.has("_requestId"), is(false));
+        assertThat("or marker", o.has("_marker"), is(false));
+        assertThat(o.get("_app").getAsString(), is("gelfback"));
+
+        GELFCodec.Builder builder = new GELFCodec.Builder("test").includeMdc(true).includeMarker(true);
+        o = parse(builder.build(), event, fields);
+        assertThat(o.get("_requestId").getAsString(), is("r-1"));
+        assertThat(o.get("_tenant").getAsString(), is("t\"1"));
+        assertThat(o.get("_secret").getAsString(), is("hunter2"));
+        assertThat("null values are skipped", o.has("_empty"), is(false));
+        assertThat(o.get("_marker").getAsString(), is("AUDIT"));
+        assertThat(o.get("_app").getAsString(), is("gelfback"));
+
+        o = parse(new GELFCodec("test", false, false, true, null, Collections.singleton("secret"), false), event, fields);
+        assertThat(o.has("_requestId"), is(true));
+        assertThat("excluded keys are skipped", o.has("_secret"), is(false));
+        assertThat(o.has("_marker"), is(false));
+
+        o = parse(builder.mdcIncludes(Collections.singleton("tenant")).build(), event, fields);
+        assertThat("only included keys are sent", o.has("_requestId"), is(false));
+        assertThat(o.get("_tenant").getAsString(), is("t\"1"));
+
+        o = parse(builder.includeMdc(false).build(), event, fields);
+        assertThat(o.has("_requestId"), is(false));
+    }
+
+    @Test
+    public void testFieldKeyCacheIsBounded() throws IOException {
+        GELFFieldKeys keys = new GELFFieldKeys(2);
+        assertThat(new String(keys.get("a\"b"), "UTF-8"), is("\"_a\\\"b\":"));
+        assertThat("cached keys are reused", keys.get("a\"b"), sameInstance(keys.get("a\"b")));
+        keys.get("c");
+        keys.get("d");
+        assertThat(keys.size(), is(2));
+        assertThat("keys are still encoded once the cache is full", new String(keys.get("d"), "UTF-8"), is("\"_d\":"));
+    }
+
+    private String json(GELFCodec codec, LoggingEvent event, Map<String, ?> extraFields) throws IOException {
+        byte[] bytes = glue(codec.framed(event, extraFields));
+        return new String(bytes, 0, bytes.length - 1, "UTF-8");
+    }
+
+    private static int occurrences(String s, String of) {
+        int n = 0;
+        for (int i = s.indexOf(of); i >= 0; i = s.indexOf(of, i + of.length()))
+            n++;
+        return n;
+    }
+
+    @Test
+    public void testNullFieldValuesAreSkipped() throws IOException {
+        LoggingEvent event = event("nulls");
+        event.setMDCPropertyMap(Collections.<String, String>singletonMap("requestId", null));
+        Map<String, String> staticFields = new LinkedHashMap<String, String>();
+        staticFields.put("app", "gelfback");
+        staticFields.put("unset", null);
+        GELFCodec codec = new GELFCodec.Builder("test").includeMdc(true).staticFields(staticFields).build();
+        String json = json(codec, event, Collections.singletonMap("extra", null));
+        JsonObject o = new Gson().fromJson(json, JsonObject.class);
+        assertThat(o.get("short_message").getAsString(), is("nulls"));
+        assertThat(o.get("_app").getAsString(), is("gelfback"));
+        assertThat(o.has("_requestId"), is(false));
+        assertThat(o.has("_unset"), is(false));
+        assertThat(o.has("_extra"), is(false));
+    }
+
+    @Test
+    public void testStaticFieldsWinOverMdc() throws IOException {
+        LoggingEvent event = event("collision");
+        Map<String, String> mdc = new LinkedHashMap<String, String>();
+        mdc.put("app", "from MDC");
+        mdc.put("requestId", "r-1");
+        event.setMDCPropertyMap(mdc);
+        GELFCodec codec = new GELFCodec.Builder("test").includeMdc(true)
+                .staticFields(Collections.singletonMap("app", "gelfback")).build();
+        String json = json(codec, event, null);
+        assertThat("no duplicate keys", occurrences(json, "\"_app\":"), is(1));
+        JsonObject o = new Gson().fromJson(json, JsonObject.class);
+        assertThat(o.get("_app").getAsString(), is("gelfback"));
+        assertThat(o.get("_requestId").getAsString(), is("r-1"));
+    }
+
+    @Test
+    public void testIdFieldIsNotSent() throws IOException {
+        LoggingEvent event = event("reserved");
+        Map<String, String> mdc = new LinkedHashMap<String, String>();
+        mdc.put("id", "from MDC");
+        mdc.put("requestId", "r-1");
+        event.setMDCPropertyMap(mdc);
+        GELFCodec codec = new GELFCodec.Builder("test").includeMdc(true)
+                .staticFields(Collections.singletonMap("id", "static")).build();
+        String json = json(codec, event, Collections.singletonMap("id", "extra"));
+        assertThat(json.contains("\"_id\""), is(false));
+        assertThat(new Gson().fromJson(json, JsonObject.class).get("_requestId").getAsString(), is("r-1"));
+    }
+
+    private LoggingEvent failure(int line) {
+        Exception cause = new RuntimeException("connection refused");
+        cause.setStackTrace(new StackTraceElement[] { new StackTraceElement("Socket", "connect", "Socket.java", 1) });
+        Exception e = new IllegalStateException("retry failed", cause);
+        e.setStackTrace(new StackTraceElement[] { new StackTraceElement("Client", "call", "Client.java", line) });
+        return new LoggingEvent(GELFCodecTest.class.getName(), new LoggerContext().getLogger(getClass()),
+                Level.ERROR, "failed", e, null);
+    }
+
+    @Test
+    public void testStackTraceCache() throws IOException {
+        GELFCodec codec = new GELFCodec("test", false, true);
+        JsonObject first = parse(codec, failure(10), null);
+        JsonObject second = parse(codec, failure(10), null);
+        assertThat("a new throwable with the same structure is a hit", codec.stackTraceCacheHits(), is(1L));
+        assertThat(codec.stackTraceCacheMisses(), is(1L));
+        assertThat(second.get("_stack_trace").getAsString(), is(first.get("_stack_trace").getAsString()));
+        assertThat(first.get("_stack_trace").getAsString(), containsString("Client.call(Client.java:10)"));
+        JsonObject other = parse(codec, failure(11), null);
+        assertThat("a different frame is a miss", codec.stackTraceCacheMisses(), is(2L));
+        assertThat(other.get("_stack_trace").getAsString(), containsString("Client.call(Client.java:11)"));
+    }
+
+    @Test
+    public void testWithoutStackTraces() throws IOException {
+        GELFCodec codec = new GELFCodec("test", false, false);
+        JsonObject o = parse(codec, failure(10), null);
+        assertThat(o.has("_stack_trace"), is(false));
+        assertThat(o.get("_exception").getAsString(), is("java.lang.IllegalStateException: retry failed"));
+        assertThat("nothing is cached", codec.stackTraceCacheMisses(), is(0L));
+    }
+
+    private String timestamp(GELFCodec codec, long millis) throws IOException {
+        LoggingEvent event = event("at a time");
+        event.setTimeStamp(millis);
+        byte[] bytes = glue(codec.framed(event));
+        String json = new String(bytes, 0, bytes.length - 1, "UTF-8");
+        int start = json.indexOf("\"timestamp\":") + "\"timestamp\":".length();
+        return json.substring(start, json.indexOf(',', start));
+    }
+
+    @Test
+    public void testNumericTimestamp() throws IOException {
+        GELFCodec codec = new GELFCodec.Builder("test").numericTimestamp(true).build();
+        assertThat(timestamp(codec, 978336000123L), is("978336000.123"));
+        assertThat("the cached seconds are reused", timestamp(codec, 978336000999L), is("978336000.999"));
+        assertThat("and replaced in the next second", timestamp(codec, 978336001000L), is("978336001.000"));
+        assertThat(timestamp(codec, 5L), is("0.005"));
+        assertThat(timestamp(codec, -1500L), is("-1.500"));
+        assertThat("legacy timestamps are strings of whole seconds",
+                timestamp(new GELFCodec("test", false, false), 978336000123L), is("\"978336000\""));
+    }
 }
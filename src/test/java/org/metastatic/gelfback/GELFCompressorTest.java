@@ -0,0 +1,87 @@
+package org.metastatic.gelfback;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GELFCompressorTest {
+    private static byte[] contents(ByteBuffersOutputStream out) {
+        byte[] ret = new byte[(int) out.size()];
+        int n = 0;
+        for (ByteBuffer b : out.toBuffers()) {
+            int len = b.remaining();
+            b.get(ret, n, len);
+            n += len;
+        }
+        return ret;
+    }
+
+    private static byte[] inflate(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    private static ByteBuffersOutputStream message(String text, SlabPool pool) throws IOException {
+        ByteBuffersOutputStream out = new ByteBuffersOutputStream(pool);
+        out.write(text.getBytes("UTF-8"));
+        out.write(0);
+        return out;
+    }
+
+    private static String text(int i) {
+        StringBuilder s = new StringBuilder("{\"version\":\"1.1\",\"short_message\":\"");
+        for (int j = 0; j < 50; j++)
+            s.append("message ").append(i).append(' ');
+        return s.append("\"}").toString();
+    }
+
+    private void roundTrip(GELFCompression compression, boolean direct) throws IOException {
+        // Small slabs, so each message spans several.
+        SlabPool pool = new SlabPool(64, 16, direct);
+        GELFCompressor compressor = new GELFCompressor(compression, 6);
+        ByteBuffersOutputStream compressed = new ByteBuffersOutputStream(pool);
+        for (int i = 0; i < 3; i++) {
+            String text = text(i);
+            ByteBuffersOutputStream in = message(text, pool);
+            compressed.reset();
+            // Leave off the NUL terminator.
+            compressor.compress(in.readableBuffers(), in.slabCount(), in.size() - 1, compressed);
+            byte[] bytes = contents(compressed);
+            assertThat("compressed is smaller", bytes.length < text.length(), is(true));
+            InputStream inflater = compression == GELFCompression.GZIP
+                    ? new GZIPInputStream(new ByteArrayInputStream(bytes))
+                    : new InflaterInputStream(new ByteArrayInputStream(bytes));
+            assertThat("compressor is reusable", new String(inflate(inflater), "UTF-8"), is(text));
+            in.close();
+        }
+        compressor.end();
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        roundTrip(GELFCompression.GZIP, false);
+    }
+
+    @Test
+    public void testZlib() throws IOException {
+        roundTrip(GELFCompression.ZLIB, false);
+    }
+
+    @Test
+    public void testDirectSlabs() throws IOException {
+        roundTrip(GELFCompression.GZIP, true);
+    }
+}
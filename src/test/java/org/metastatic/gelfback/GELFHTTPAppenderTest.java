@@ -0,0 +1,189 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GELFHTTPAppenderTest {
+    private HttpServer server;
+    private GELFHTTPAppender appender;
+    private final List<JsonObject> messages = Collections.synchronizedList(new ArrayList<JsonObject>());
+    private final Set<InetSocketAddress> clients = Collections.synchronizedSet(new HashSet<InetSocketAddress>());
+    private final List<String> encodings = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger requests = new AtomicInteger();
+    // Statuses to answer the first requests with; after these, 202.
+    private volatile int[] statuses = new int[0];
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/gelf", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                int n = requests.getAndIncrement();
+                clients.add(exchange.getRemoteAddress());
+                String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                encodings.add(String.valueOf(encoding));
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(encoding))
+                    in = new GZIPInputStream(in);
+                String body = new String(readAll(in), "UTF-8");
+                int status = n < statuses.length ? statuses[n] : 202;
+                if (status == 202) {
+                    Gson gson = new Gson();
+                    for (String line : body.split("\n"))
+                        messages.add(gson.fromJson(line, JsonObject.class));
+                }
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        appender = new GELFHTTPAppender();
+        appender.setContext(new LoggerContext());
+        appender.setGelfHost("127.0.0.1");
+        appender.setGelfPort(server.getAddress().getPort());
+        appender.setLocalHost("test");
+        appender.setRetryBackoffMillis(10);
+    }
+
+    @After
+    public void teardown() {
+        appender.stop();
+        server.stop(0);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    private LoggingEvent event(int i) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLevel(Level.INFO);
+        event.setMessage("message {}");
+        event.setArgumentArray(new Object[] { i });
+        event.setTimeStamp(978336000000L);
+        event.setLoggerName("TestLogger");
+        event.setThreadName("TestThread");
+        return event;
+    }
+
+    private void awaitMessages(int count) throws InterruptedException {
+        for (int i = 0; i < 1000 && messages.size() < count; i++)
+            Thread.sleep(10);
+    }
+
+    @Test
+    public void testBatchedPosts() throws Exception {
+        appender.setBatchSize(10);
+        appender.setLingerMillis(50);
+        appender.start();
+        for (int i = 0; i < 50; i++)
+            appender.doAppend(event(i));
+        awaitMessages(50);
+        assertThat("all messages arrive", messages.size(), is(50));
+        for (int i = 0; i < 50; i++)
+            assertThat("messages arrive in order", messages.get(i).get("short_message").getAsString(), is("message " + i));
+        assertThat("events are batched", requests.get() < 50, is(true));
+        assertThat("the connection is kept alive", clients.size(), is(1));
+        assertThat(appender.awaitDrained(10, TimeUnit.SECONDS), is(true));
+        assertThat("each post is timed", appender.metrics.sendLatencyNanos.count(), is((long) requests.get()));
+    }
+
+    @Test
+    public void testRetryResendsBatch() throws Exception {
+        statuses = new int[] { 503, 503 };
+        appender.setBatchSize(5);
+        appender.setLingerMillis(100);
+        appender.start();
+        for (int i = 0; i < 5; i++)
+            appender.doAppend(event(i));
+        awaitMessages(5);
+        Thread.sleep(50);
+        assertThat("every message arrives once", messages.size(), is(5));
+        assertThat(appender.getRetryCount(), is(2L));
+        assertThat(appender.getFailedCount(), is(0L));
+    }
+
+    @Test
+    public void testRejectedBatchDropped() throws Exception {
+        statuses = new int[] { 400 };
+        appender.start();
+        appender.doAppend(event(0));
+        for (int i = 0; i < 1000 && appender.getFailedCount() == 0; i++)
+            Thread.sleep(10);
+        assertThat(appender.getFailedCount(), is(1L));
+        assertThat("client errors aren't retried", appender.getRetryCount(), is(0L));
+        appender.doAppend(event(1));
+        awaitMessages(1);
+        assertThat(messages.get(0).get("short_message").getAsString(), is("message 1"));
+    }
+
+    @Test
+    public void testUnencodableEventsFail() throws Exception {
+        appender.setBatchSize(10);
+        appender.setLingerMillis(50);
+        appender.start();
+        for (int i = 0; i < 10; i++) {
+            if (i % 3 == 0) {
+                LoggingEvent poison = new LoggingEvent() {
+                    @Override
+                    public String getFormattedMessage() {
+                        throw new IllegalStateException("can't format");
+                    }
+                };
+                poison.setLevel(Level.INFO);
+                poison.setLoggerName("TestLogger");
+                poison.setThreadName("TestThread");
+                appender.doAppend(poison);
+            } else {
+                appender.doAppend(event(i));
+            }
+        }
+        assertThat(appender.awaitDrained(10, TimeUnit.SECONDS), is(true));
+        assertThat(messages.size(), is(6));
+        assertThat("only encoded events count as sent", appender.getSentCount(), is(6L));
+        assertThat(appender.getFailedCount(), is(4L));
+    }
+
+    @Test
+    public void testGzipBody() throws Exception {
+        appender.setCompression("gzip");
+        appender.setCompressionThreshold(0);
+        appender.setLingerMillis(50);
+        appender.start();
+        for (int i = 0; i < 3; i++)
+            appender.doAppend(event(i));
+        awaitMessages(3);
+        assertThat(messages.size(), is(3));
+        assertThat(encodings.get(0), is("gzip"));
+    }
+}
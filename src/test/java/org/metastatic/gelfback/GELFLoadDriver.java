@@ -0,0 +1,351 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes a mix of events through a real {@link GELFTCPAppender} into a
+ * {@link GELFTestSink}, and reports the sustained rate, the latency from
+ * append to the sink reading the message, and whether every message arrived
+ * exactly once and intact.
+ *
+ * Each event's message carries its id and the {@link System#nanoTime()} it
+ * was appended at, followed by a payload that is a function of the id, so
+ * the sink side can check every byte without keeping the events around.
+ * Optionally, the sink drops all connections or stalls on a schedule, to
+ * see how the appender copes with reconnects and backlog.
+ *
+ * Run it by hand with key=value arguments naming the fields below, such as
+ * events=1000000 threads=16 ttlSeconds=5 dropEveryMillis=2000:
+ *
+ * <pre>
+ * mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) org.metastatic.gelfback.GELFLoadDriver events=1000000
+ * </pre>
+ */
+class GELFLoadDriver {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String TEMPLATE = "load {} {} {}";
+    private static final int LARGE_PAYLOAD = 8192;
+    private static final int MULTILINE_LINES = 20;
+
+    /** Total events to send. */
+    int events = 100000;
+    /** Threads logging at once. */
+    int threads = 4;
+    /** Events per second across all threads; zero for as fast as possible. */
+    long ratePerSecond;
+    /** The relative share of one-line, multi-line, 8 KiB and exception events. */
+    int smallWeight = 85;
+    int multilineWeight = 5;
+    int largeWeight = 5;
+    int exceptionWeight = 5;
+    /** The appender's settings. */
+    int ttlSeconds = 60;
+    int poolSize = 1;
+    int queueSize = 65536;
+    String overflowPolicy = "BLOCK";
+    long blockTimeoutMillis = 60000;
+    /** How the sink misbehaves; zero for never. */
+    long readDelayMicros;
+    long dropEveryMillis;
+    long stallEveryMillis;
+    long stallForMillis = 500;
+    /** How long to wait for the last messages after the last append. */
+    long drainTimeoutMillis = 30000;
+
+    static final class Report {
+        long sent;
+        long received;
+        long unique;
+        long missing;
+        long duplicates;
+        long corrupt;
+        long incomplete;
+        long dropped;
+        long connections;
+        double eventsPerSecond;
+        LatencyHistogram latency;
+
+        @Override
+        public String toString() {
+            return String.format("sent %d, received %d (%d unique): %d missing, %d duplicates, %d corrupt,"
+                            + " %d cut short, %d dropped by the appender; %d connections%n"
+                            + "%.0f events/s; latency p50 %s, p90 %s, p99 %s, p99.9 %s, max %s",
+                    sent, received, unique, missing, duplicates, corrupt, incomplete, dropped, connections,
+                    eventsPerSecond, micros(latency.percentile(50)), micros(latency.percentile(90)),
+                    micros(latency.percentile(99)), micros(latency.percentile(99.9)), micros(latency.max()));
+        }
+
+        private static String micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+        }
+    }
+
+    private enum Kind { SMALL, MULTILINE, LARGE, EXCEPTION }
+
+    private Kind kind(int id) {
+        int total = smallWeight + multilineWeight + largeWeight + exceptionWeight;
+        int n = id % total;
+        if ((n -= smallWeight) < 0)
+            return Kind.SMALL;
+        if ((n -= multilineWeight) < 0)
+            return Kind.MULTILINE;
+        if (n - largeWeight < 0)
+            return Kind.LARGE;
+        return Kind.EXCEPTION;
+    }
+
+    private String payload(int id) {
+        switch (kind(id)) {
+            case MULTILINE: {
+                StringBuilder b = new StringBuilder();
+                for (int i = 0; i < MULTILINE_LINES; i++)
+                    b.append('\n').append("line ").append(i).append(" of event ").append(id).append(" \"quoted\" é");
+                return b.toString();
+            }
+            case LARGE: {
+                StringBuilder b = new StringBuilder(LARGE_PAYLOAD);
+                while (b.length() < LARGE_PAYLOAD)
+                    b.append(id).append(':');
+                return b.toString();
+            }
+            default:
+                return "event " + id;
+        }
+    }
+
+    Report run() throws IOException, InterruptedException {
+        final Report report = new Report();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicIntegerArray seen = new AtomicIntegerArray(events);
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong corrupt = new AtomicLong();
+        final AtomicLong lastReceived = new AtomicLong();
+        final Gson gson = new Gson();
+        GELFTestSink sink = new GELFTestSink(new GELFTestSink.Listener() {
+            public void message(byte[] frame, long receivedNanos) {
+                received.incrementAndGet();
+                lastReceived.set(receivedNanos);
+                int id = verify(gson, new String(frame, UTF8), receivedNanos, latency);
+                if (id < 0)
+                    corrupt.incrementAndGet();
+                else
+                    seen.incrementAndGet(id);
+            }
+        });
+
+        GELFTCPAppender appender = new GELFTCPAppender();
+        appender.setContext(new LoggerContext());
+        appender.setGelfHost("127.0.0.1");
+        appender.setGelfPort(sink.getPort());
+        appender.setLocalHost("load-driver");
+        appender.setIncludeStackTrace(true);
+        appender.setTtlSeconds(ttlSeconds);
+        appender.setPoolSize(poolSize);
+        appender.setQueueSize(queueSize);
+        appender.setOverflowPolicy(overflowPolicy);
+        appender.setBlockTimeoutMillis(blockTimeoutMillis);
+        sink.setReadDelayMicros(readDelayMicros);
+        appender.start();
+
+        Thread chaos = startChaos(sink);
+        long start = System.nanoTime();
+        try {
+            List<Thread> producers = new ArrayList<Thread>();
+            for (int t = 0; t < threads; t++) {
+                Thread producer = new Thread(producer(appender, t), "load-" + t);
+                producers.add(producer);
+                producer.start();
+            }
+            for (Thread producer : producers)
+                producer.join();
+            if (chaos != null)
+                chaos.interrupt();
+            sink.setStalled(false);
+            sink.setReadDelayMicros(0);
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+            while (System.nanoTime() < deadline && !(appender.isDrained() && countUnique(seen) + appender.getDroppedCount() >= events))
+                Thread.sleep(10);
+            // Give the sink a moment to read what the appender has just written.
+            Thread.sleep(100);
+        } finally {
+            if (chaos != null)
+                chaos.interrupt();
+            appender.stop();
+            sink.close();
+        }
+
+        report.sent = events;
+        report.received = received.get();
+        report.corrupt = corrupt.get();
+        for (int i = 0; i < events; i++) {
+            int n = seen.get(i);
+            if (n == 0)
+                report.missing++;
+            else
+                report.unique++;
+            if (n > 1)
+                report.duplicates += n - 1;
+        }
+        report.incomplete = sink.getIncompleteCount();
+        report.dropped = appender.getDroppedCount();
+        report.connections = sink.getAcceptedCount();
+        long elapsed = Math.max(1, lastReceived.get() - start);
+        report.eventsPerSecond = report.unique * 1e9 / elapsed;
+        report.latency = latency;
+        return report;
+    }
+
+    private static long countUnique(AtomicIntegerArray seen) {
+        long n = 0;
+        for (int i = 0; i < seen.length(); i++) {
+            if (seen.get(i) > 0)
+                n++;
+        }
+        return n;
+    }
+
+    private Runnable producer(final GELFTCPAppender appender, final int thread) {
+        final Throwable exception = new IllegalStateException("load test exception");
+        return new Runnable() {
+            public void run() {
+                long intervalNanos = ratePerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) * threads / ratePerSecond : 0;
+                long next = System.nanoTime();
+                for (int id = thread; id < events; id += threads) {
+                    if (intervalNanos > 0) {
+                        next += intervalNanos;
+                        long wait;
+                        while ((wait = next - System.nanoTime()) > 0)
+                            LockSupport.parkNanos(wait);
+                    }
+                    LoggingEvent event = new LoggingEvent();
+                    event.setLevel(Level.INFO);
+                    event.setLoggerName("GELFLoadDriver");
+                    event.setThreadName("load-" + thread);
+                    event.setMessage(TEMPLATE);
+                    if (kind(id) == Kind.EXCEPTION)
+                        event.setThrowableProxy(new ThrowableProxy(exception));
+                    event.setTimeStamp(System.currentTimeMillis());
+                    String payload = payload(id);
+                    event.setArgumentArray(new Object[] { id, System.nanoTime(), payload });
+                    appender.doAppend(event);
+                }
+            }
+        };
+    }
+
+    /**
+     * Check a message against what was sent, and record its latency.
+     *
+     * @return The event id, or -1 if the message is corrupt.
+     */
+    private int verify(Gson gson, String json, long receivedNanos, LatencyHistogram latency) {
+        JsonObject message;
+        try {
+            message = gson.fromJson(json, JsonObject.class);
+        } catch (JsonSyntaxException e) {
+            return -1;
+        }
+        if (message == null)
+            return -1;
+        JsonElement full = message.get("full_message");
+        JsonElement shortMessage = message.get("short_message");
+        if (shortMessage == null)
+            return -1;
+        String text = full != null ? full.getAsString() : shortMessage.getAsString();
+        String[] parts = text.split(" ", 4);
+        if (parts.length != 4 || !parts[0].equals("load"))
+            return -1;
+        int id;
+        long appended;
+        try {
+            id = Integer.parseInt(parts[1]);
+            appended = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (id < 0 || id >= events || !parts[3].equals(payload(id)))
+            return -1;
+        int newline = text.indexOf('\n');
+        if (newline > 0 && !shortMessage.getAsString().equals(text.substring(0, newline)))
+            return -1;
+        if ((kind(id) == Kind.EXCEPTION) != (message.get("_exception") != null))
+            return -1;
+        latency.record(receivedNanos - appended);
+        return id;
+    }
+
+    private Thread startChaos(final GELFTestSink sink) {
+        if (dropEveryMillis <= 0 && stallEveryMillis <= 0)
+            return null;
+        Thread chaos = new Thread(new Runnable() {
+            public void run() {
+                long nextDrop = dropEveryMillis > 0 ? System.currentTimeMillis() + dropEveryMillis : Long.MAX_VALUE;
+                long nextStall = stallEveryMillis > 0 ? System.currentTimeMillis() + stallEveryMillis : Long.MAX_VALUE;
+                try {
+                    while (true) {
+                        long now = System.currentTimeMillis();
+                        if (now >= nextDrop) {
+                            sink.dropConnections();
+                            nextDrop = now + dropEveryMillis;
+                        }
+                        if (now >= nextStall) {
+                            sink.setStalled(true);
+                            Thread.sleep(stallForMillis);
+                            sink.setStalled(false);
+                            nextStall = System.currentTimeMillis() + stallEveryMillis;
+                        }
+                        Thread.sleep(Math.max(1, Math.min(nextDrop, nextStall) - System.currentTimeMillis()));
+                    }
+                } catch (InterruptedException e) {
+                    sink.setStalled(false);
+                }
+            }
+        }, "load-chaos");
+        chaos.setDaemon(true);
+        chaos.start();
+        return chaos;
+    }
+
+    public static void main(String[] args) throws Exception {
+        GELFLoadDriver driver = new GELFLoadDriver();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("expected key=value: " + arg);
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            Field field;
+            try {
+                field = GELFLoadDriver.class.getDeclaredField(key);
+            } catch (NoSuchFieldException e) {
+                throw new IllegalArgumentException("unknown setting: " + key);
+            }
+            if (field.getType() == int.class)
+                field.setInt(driver, Integer.parseInt(value));
+            else if (field.getType() == long.class)
+                field.setLong(driver, Long.parseLong(value));
+            else
+                field.set(driver, value);
+        }
+        System.out.println(driver.run());
+    }
+}
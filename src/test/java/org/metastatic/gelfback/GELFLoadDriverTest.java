@@ -0,0 +1,71 @@
+package org.metastatic.gelfback;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Short runs of the load driver, checking the appender end to end against
+ * a local sink, including while it reconnects and while the sink falls behind.
+ */
+public class GELFLoadDriverTest {
+    private static void assertIntact(GELFLoadDriver.Report report) {
+        assertThat(report.toString(), report.corrupt, is(0L));
+        assertThat(report.toString(), report.missing, is(0L));
+        assertThat(report.toString(), report.duplicates, is(0L));
+    }
+
+    @Test
+    public void testSteadyLoad() throws Exception {
+        GELFLoadDriver driver = new GELFLoadDriver();
+        driver.events = 20000;
+        driver.threads = 4;
+        GELFLoadDriver.Report report = driver.run();
+        assertIntact(report);
+        assertThat(report.latency.count(), is(20000L));
+        assertThat(report.latency.percentile(50) <= report.latency.percentile(99), is(true));
+        assertThat(report.eventsPerSecond > 0, is(true));
+    }
+
+    @Test
+    public void testReconnectsOnTtl() throws Exception {
+        GELFLoadDriver driver = new GELFLoadDriver();
+        driver.events = 10000;
+        driver.ratePerSecond = 4000;
+        driver.ttlSeconds = 1;
+        driver.poolSize = 2;
+        GELFLoadDriver.Report report = driver.run();
+        assertIntact(report);
+        assertThat("the pool reconnected", report.connections > 2, is(true));
+    }
+
+    @Test
+    public void testSlowAndStalledSink() throws Exception {
+        GELFLoadDriver driver = new GELFLoadDriver();
+        driver.events = 10000;
+        driver.ratePerSecond = 10000;
+        driver.readDelayMicros = 200;
+        driver.stallEveryMillis = 300;
+        driver.stallForMillis = 200;
+        GELFLoadDriver.Report report = driver.run();
+        assertIntact(report);
+        assertThat(report.dropped, is(0L));
+    }
+
+    @Test
+    public void testDroppedConnections() throws Exception {
+        GELFLoadDriver driver = new GELFLoadDriver();
+        driver.events = 10000;
+        driver.ratePerSecond = 5000;
+        driver.dropEveryMillis = 500;
+        // Lost events never turn up, so don't wait long for them.
+        driver.drainTimeoutMillis = 3000;
+        GELFLoadDriver.Report report = driver.run();
+        // Whatever was in flight when a connection dropped may be lost or sent
+        // twice, but nothing arrives garbled and sending carries on.
+        assertThat(report.toString(), report.corrupt, is(0L));
+        assertThat(report.toString(), report.connections > 1, is(true));
+        assertThat(report.toString(), report.unique > report.sent / 2, is(true));
+    }
+}
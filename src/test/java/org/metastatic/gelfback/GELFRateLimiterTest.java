@@ -0,0 +1,93 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GELFRateLimiterTest {
+    private final List<ILoggingEvent> summaries = new ArrayList<ILoggingEvent>();
+    private final List<Long> counts = new ArrayList<Long>();
+    private final GELFRateLimiter.Sink sink = new GELFRateLimiter.Sink() {
+        public void summary(ILoggingEvent lastSuppressed, long suppressedCount) {
+            summaries.add(lastSuppressed);
+            counts.add(suppressedCount);
+        }
+    };
+
+    private static LoggingEvent event(String logger, Level level, String template, Object arg) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLoggerName(logger);
+        event.setLevel(level);
+        event.setMessage(template);
+        event.setArgumentArray(new Object[] { arg });
+        event.setThreadName("TestThread");
+        return event;
+    }
+
+    @Test
+    public void testLimitsPerWindow() {
+        GELFRateLimiter limiter = new GELFRateLimiter(64, 3, 1000);
+        int allowed = 0;
+        for (int i = 0; i < 10; i++) {
+            if (limiter.tryAcquire(event("a", Level.INFO, "retry {}", i), 100, sink))
+                allowed++;
+        }
+        assertThat(allowed, is(3));
+        assertThat("no summary until the window ends", summaries.isEmpty(), is(true));
+
+        assertThat(limiter.tryAcquire(event("a", Level.INFO, "retry {}", 10), 1100, sink), is(true));
+        assertThat(counts, is(Collections.singletonList(7L)));
+        assertThat(summaries.get(0).getFormattedMessage(), is("retry 9"));
+    }
+
+    @Test
+    public void testKeysAreSeparate() {
+        GELFRateLimiter limiter = new GELFRateLimiter(64, 1, 1000);
+        assertThat(limiter.tryAcquire(event("a", Level.INFO, "x {}", 0), 0, sink), is(true));
+        assertThat(limiter.tryAcquire(event("a", Level.INFO, "x {}", 1), 0, sink), is(false));
+        assertThat("other levels aren't limited", limiter.tryAcquire(event("a", Level.WARN, "x {}", 2), 0, sink), is(true));
+        assertThat("other loggers aren't limited", limiter.tryAcquire(event("b", Level.INFO, "x {}", 3), 0, sink), is(true));
+        assertThat("other templates aren't limited", limiter.tryAcquire(event("a", Level.INFO, "y {}", 4), 0, sink), is(true));
+    }
+
+    @Test
+    public void testSweepAndFlush() {
+        GELFRateLimiter limiter = new GELFRateLimiter(64, 1, 1000);
+        for (int i = 0; i < 5; i++)
+            limiter.tryAcquire(event("a", Level.INFO, "x {}", i), 0, sink);
+        for (int i = 0; i < 3; i++)
+            limiter.tryAcquire(event("b", Level.INFO, "x {}", i), 500, sink);
+        limiter.sweep(1200, sink);
+        assertThat("only ended windows are swept", counts, is(Collections.singletonList(4L)));
+        limiter.sweep(1300, sink);
+        assertThat("sweeps run once per window", counts.size(), is(1));
+        limiter.flush(sink);
+        assertThat(counts.size(), is(2));
+        assertThat(counts.get(1), is(2L));
+        assertThat("flush forgets keys", limiter.tryAcquire(event("b", Level.INFO, "x {}", 9), 600, sink), is(true));
+    }
+
+    @Test
+    public void testFullTableLetsEventsThrough() {
+        GELFRateLimiter limiter = new GELFRateLimiter(64, 1, 1000);
+        for (int i = 0; i < 1000; i++) {
+            String template = "template " + i;
+            limiter.tryAcquire(event("a", Level.INFO, template, i), 0, sink);
+            limiter.tryAcquire(event("a", Level.INFO, template, i), 0, sink);
+        }
+        int allowed = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (limiter.tryAcquire(event("a", Level.INFO, "new " + i, i), 0, sink))
+                allowed++;
+        }
+        assertThat("keys without a slot aren't limited", allowed, is(1000));
+    }
+}
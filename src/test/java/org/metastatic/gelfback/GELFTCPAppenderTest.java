@@ -0,0 +1,688 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.MDC;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GELFTCPAppenderTest {
+    private ServerSocket server;
+    private GELFTCPAppender appender;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setup() throws IOException {
+        server = new ServerSocket(0);
+        server.setSoTimeout(10000);
+        appender = new GELFTCPAppender();
+        appender.setContext(new LoggerContext());
+        appender.setGelfHost("127.0.0.1");
+        appender.setGelfPort(server.getLocalPort());
+        appender.setLocalHost("test");
+    }
+
+    @After
+    public void teardown() throws IOException {
+        appender.stop();
+        server.close();
+    }
+
+    private LoggingEvent event(int i) {
+        return event(Level.INFO, i);
+    }
+
+    private LoggingEvent event(Level level, int i) {
+        return event(level, i, "TestThread");
+    }
+
+    private LoggingEvent event(Level level, int i, String thread) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLevel(level);
+        event.setMessage("message {}");
+        event.setArgumentArray(new Object[] { i });
+        event.setTimeStamp(978336000000L);
+        event.setLoggerName("TestLogger");
+        event.setThreadName(thread);
+        return event;
+    }
+
+    private List<JsonObject> read(Socket socket, int count) throws IOException {
+        List<JsonObject> ret = new ArrayList<JsonObject>();
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        Gson gson = new Gson();
+        while (ret.size() < count) {
+            int b;
+            try {
+                b = in.read();
+            } catch (SocketTimeoutException e) {
+                break;
+            }
+            if (b < 0)
+                break;
+            if (b == 0) {
+                ret.add(gson.fromJson(new String(frame.toByteArray(), "UTF-8"), JsonObject.class));
+                frame.reset();
+            } else {
+                frame.write(b);
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void testBatchedDelivery() throws IOException {
+        appender.setBatchSize(16);
+        appender.setLingerMillis(5);
+        appender.start();
+        Socket socket = server.accept();
+        socket.setSoTimeout(10000);
+        for (int i = 0; i < 100; i++) {
+            appender.doAppend(event(i));
+        }
+        List<JsonObject> messages = read(socket, 100);
+        assertThat("all messages arrive", messages.size(), is(100));
+        for (int i = 0; i < 100; i++) {
+            assertThat("messages arrive in order", messages.get(i).get("short_message").getAsString(), is("message " + i));
+        }
+        socket.close();
+    }
+
+    @Test
+    public void testMetricsOverJmx() throws Exception {
+        appender.setName("metrics");
+        appender.start();
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.metastatic.gelfback:type=GELFTCPAppender,name=\"metrics\"");
+        assertThat("the appender is registered while started", mbeans.isRegistered(name), is(true));
+        Socket socket = server.accept();
+        socket.setSoTimeout(10000);
+        for (int i = 0; i < 50; i++) {
+            appender.doAppend(event(i));
+        }
+        assertThat("all messages arrive", read(socket, 50).size(), is(50));
+        // The sink can read a batch before the appender hears it was written.
+        assertThat(appender.awaitDrained(10, TimeUnit.SECONDS), is(true));
+        assertThat(appender.getSentCount(), is(50L));
+        assertThat((Long) mbeans.getAttribute(name, "SentCount"), is(50L));
+        assertThat((Long) mbeans.getAttribute(name, "EnqueuedCount"), is(50L));
+        assertThat("bytes are counted", appender.getBytesWritten() > 50 * 20, is(true));
+        assertThat("encoding is timed", appender.getEncodeNanosMax() > 0, is(true));
+        assertThat("percentiles are ordered", appender.getQueueWaitMicrosP50() <= appender.getQueueWaitMicrosMax(), is(true));
+        assertThat("writes are timed", appender.metrics.sendLatencyNanos.count() > 0, is(true));
+        assertThat("sending takes at least as long as queueing",
+                appender.metrics.sendLatencyNanos.max() >= appender.metrics.queueWaitNanos.max(), is(true));
+        assertThat(appender.getReconnectCount(), is(0L));
+        assertThat(appender.getConnectFailureCount(), is(0L));
+        appender.stop();
+        assertThat("the appender is unregistered once stopped", mbeans.isRegistered(name), is(false));
+        socket.close();
+    }
+
+    @Test
+    public void testStopFlushesQueue() throws Exception {
+        appender.setBatchSize(8);
+        appender.start();
+        // Queue everything before there is a connection to send it on.
+        for (int i = 0; i < 500; i++) {
+            appender.doAppend(event(i));
+        }
+        final AtomicInteger received = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    Socket socket = server.accept();
+                    socket.setSoTimeout(10000);
+                    received.set(read(socket, 500).size());
+                    socket.close();
+                } catch (Exception e) {
+                    // pass
+                }
+            }
+        });
+        reader.start();
+        appender.stop();
+        assertThat("stop() waits for the queue", appender.getAbandonedCount(), is(0L));
+        reader.join();
+        assertThat("every queued message arrives", received.get(), is(500));
+        assertThat(appender.getSentCount(), is(500L));
+    }
+
+    @Test
+    public void testStopAbandonsAfterTimeout() throws Exception {
+        server.close();
+        appender.setStopTimeoutMillis(200);
+        appender.start();
+        for (int i = 0; i < 50; i++) {
+            appender.doAppend(event(i));
+        }
+        assertThat(appender.awaitDrained(100, TimeUnit.MILLISECONDS), is(false));
+        long start = System.nanoTime();
+        appender.stop();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertThat("stop() gives up at the deadline", millis < 2000, is(true));
+        assertThat("stop() waits for the deadline", millis >= 200, is(true));
+        assertThat("unsent events are counted", appender.getAbandonedCount(), is(50L));
+    }
+
+    private void checkUnencodableEventsAreDropped() throws Exception {
+        appender.setBatchSize(10);
+        appender.start();
+        Socket socket = server.accept();
+        socket.setSoTimeout(10000);
+        for (int i = 0; i < 10; i++) {
+            if (i % 3 == 0) {
+                LoggingEvent poison = new LoggingEvent() {
+                    @Override
+                    public String getFormattedMessage() {
+                        throw new IllegalStateException("can't format");
+                    }
+                };
+                poison.setLevel(Level.INFO);
+                poison.setLoggerName("TestLogger");
+                poison.setThreadName("TestThread");
+                appender.doAppend(poison);
+            } else {
+                appender.doAppend(event(i));
+            }
+        }
+        assertThat(read(socket, 6).size(), is(6));
+        assertThat(appender.awaitDrained(10, TimeUnit.SECONDS), is(true));
+        assertThat("only encoded events count as sent", appender.getSentCount(), is(6L));
+        assertThat(appender.getEncodeFailureCount(), is(4L));
+        assertThat(appender.getDroppedCount(), is(4L));
+        socket.close();
+    }
+
+    @Test
+    public void testUnencodableEventsAreDropped() throws Exception {
+        checkUnencodableEventsAreDropped();
+    }
+
+    @Test
+    public void testUnencodableEventsAreDroppedInParallel() throws Exception {
+        appender.setEncoderThreads(2);
+        checkUnencodableEventsAreDropped();
+    }
+
+    @Test
+    public void testDropNewestNeverThrows() throws IOException {
+        server.close(); // nothing listening, so the queue backs up
+        appender.setStopTimeoutMillis(0);
+        appender.setQueueSize(4);
+        appender.setBatchSize(1);
+        appender.start();
+        for (int i = 0; i < 20; i++) {
+            appender.doAppend(event(i));
+        }
+        assertThat("events beyond the queue and one pending batch are dropped",
+                appender.getDroppedNewestCount() >= 15, is(true));
+        assertThat("only DROP_NEWEST drops", appender.getDroppedCount(), is(appender.getDroppedNewestCount()));
+    }
+
+    @Test
+    public void testDropBelowLevelKeepsErrors() throws IOException {
+        server.close();
+        appender.setStopTimeoutMillis(0);
+        appender.setQueueSize(8);
+        appender.setBatchSize(1);
+        appender.setOverflowPolicy("drop_below_level");
+        appender.setDropThreshold("WARN");
+        appender.start();
+        for (int i = 0; i < 20; i++) {
+            appender.doAppend(event(Level.DEBUG, i));
+        }
+        long belowLevel = appender.getDroppedBelowLevelCount();
+        assertThat("debug events are dropped before the queue fills", belowLevel >= 13, is(true));
+        for (int i = 0; i < 10; i++) {
+            appender.doAppend(event(Level.ERROR, i));
+        }
+        assertThat("no errors are dropped for their level", appender.getDroppedBelowLevelCount(), is(belowLevel));
+        assertThat("errors evict older events once the queue is full", appender.getDroppedOldestCount() > 0, is(true));
+    }
+
+    @Test
+    public void testReconnectOnTtlLosesNothing() throws Exception {
+        final int total = 60;
+        final Set<String> received = Collections.synchronizedSet(new HashSet<String>());
+        final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        sockets.add(socket);
+                        new Thread(new Runnable() {
+                            public void run() {
+                                try {
+                                    for (JsonObject o : read(socket, total))
+                                        received.add(o.get("short_message").getAsString());
+                                } catch (IOException e) {
+                                    // closed
+                                }
+                            }
+                        }).start();
+                    }
+                } catch (IOException e) {
+                    // server closed
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        appender.setTtlSeconds(1);
+        appender.start();
+        for (int i = 0; i < total; i++) {
+            appender.doAppend(event(i));
+            Thread.sleep(50);
+        }
+        for (int i = 0; i < 100 && received.size() < total; i++)
+            Thread.sleep(100);
+        assertThat("the appender reconnected", sockets.size() > 1, is(true));
+        assertThat("every message arrives across reconnects", received.size(), is(total));
+        assertThat("the sender is drained", appender.isDrained(), is(true));
+    }
+
+    @Test
+    public void testParallelEncodingKeepsGlobalOrder() throws IOException {
+        appender.setEncoderThreads(3);
+        appender.setBatchSize(16);
+        appender.setLingerMillis(5);
+        appender.start();
+        Socket socket = server.accept();
+        socket.setSoTimeout(10000);
+        for (int i = 0; i < 100; i++) {
+            appender.doAppend(event(i));
+        }
+        List<JsonObject> messages = read(socket, 100);
+        assertThat("all messages arrive", messages.size(), is(100));
+        for (int i = 0; i < 100; i++) {
+            assertThat("messages arrive in order", messages.get(i).get("short_message").getAsString(), is("message " + i));
+        }
+        socket.close();
+    }
+
+    @Test
+    public void testRateLimitSummary() throws IOException {
+        appender.setRateLimitEvents(2);
+        appender.setRateLimitWindowMillis(100);
+        appender.setLingerMillis(5);
+        appender.start();
+        Socket socket = server.accept();
+        socket.setSoTimeout(10000);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            LoggingEvent event = event(i);
+            event.setTimeStamp(now);
+            appender.doAppend(event);
+        }
+        assertThat(appender.getSuppressedCount(), is(8L));
+        LoggingEvent later = event(10);
+        later.setTimeStamp(now + 100);
+        appender.doAppend(later);
+        List<JsonObject> messages = read(socket, 4);
+        assertThat(messages.size(), is(4));
+        assertThat(messages.get(2).get("short_message").getAsString(), is("message 9"));
+        assertThat("the count is a number", messages.get(2).getAsJsonPrimitive("_suppressed_count").isNumber(), is(true));
+        assertThat(messages.get(2).get("_suppressed_count").getAsLong(), is(8L));
+        assertThat(messages.get(3).get("short_message").getAsString(), is("message 10"));
+        socket.close();
+    }
+
+    @Test
+    public void testMdcIsTakenFromTheLoggingThread() throws Exception {
+        final List<JsonObject> received = Collections.synchronizedList(new ArrayList<JsonObject>());
+        final Gson gson = new Gson();
+        GELFTestSink sink = new GELFTestSink(new GELFTestSink.Listener() {
+            public void message(byte[] frame, long receivedNanos) {
+                received.add(gson.fromJson(new String(frame, StandardCharsets.UTF_8), JsonObject.class));
+            }
+        });
+        try {
+            appender.setGelfPort(sink.getPort());
+            appender.setIncludeMdc(true);
+            appender.start();
+            Logger logger = ((LoggerContext) appender.getContext()).getLogger("TestLogger");
+            logger.setAdditive(false);
+            logger.addAppender(appender);
+            MDC.put("requestId", "r-1");
+            MDC.put("tenant", "acme");
+            try {
+                logger.info("with MDC");
+            } finally {
+                MDC.clear();
+            }
+            logger.info("without MDC");
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (received.size() < 2 && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            assertThat(received.size(), is(2));
+            JsonObject with = received.get(0);
+            assertThat(with.get("short_message").getAsString(), is("with MDC"));
+            assertThat(with.get("_requestId").getAsString(), is("r-1"));
+            assertThat(with.get("_tenant").getAsString(), is("acme"));
+            assertThat("the MDC is the one at the time of logging", received.get(1).has("_requestId"), is(false));
+        } finally {
+            appender.stop();
+            sink.close();
+        }
+    }
+
+    @Test
+    public void testReconnectBacksOffWhenConnectionsAreReset() throws Exception {
+        final AtomicInteger accepted = new AtomicInteger();
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        // Accept and take the first write, then reset, like a load
+                        // balancer with no healthy backend.
+                        Socket socket = server.accept();
+                        accepted.incrementAndGet();
+                        socket.getInputStream().read();
+                        socket.setSoLinger(true, 0);
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // closed at teardown
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        appender.setLingerMillis(0);
+        appender.start();
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1500);
+        for (int i = 0; System.nanoTime() < end; i++) {
+            appender.doAppend(event(i));
+            Thread.sleep(5);
+        }
+        assertThat("connections were made", accepted.get() > 0, is(true));
+        assertThat("reconnects wait for the retry delay, got " + accepted.get(), accepted.get() <= 4, is(true));
+    }
+
+    @Test
+    public void testParallelEncodingKeepsPerThreadOrder() throws IOException {
+        appender.setEncoderThreads(3);
+        appender.setEncoderOrdering("per_thread");
+        appender.setBatchSize(16);
+        appender.setLingerMillis(5);
+        appender.start();
+        Socket socket = server.accept();
+        socket.setSoTimeout(10000);
+        for (int i = 0; i < 100; i++) {
+            appender.doAppend(event(Level.INFO, i, "thread-" + (i % 5)));
+        }
+        List<JsonObject> messages = read(socket, 100);
+        assertThat("all messages arrive", messages.size(), is(100));
+        int[] last = new int[] { -1, -1, -1, -1, -1 };
+        for (JsonObject message : messages) {
+            int i = Integer.parseInt(message.get("short_message").getAsString().substring("message ".length()));
+            assertThat("each thread's messages arrive in order", i > last[i % 5], is(true));
+            last[i % 5] = i;
+        }
+        socket.close();
+    }
+
+    @Test
+    public void testEagerEncodingSnapshotsArguments() throws IOException {
+        appender.setEagerEncoding(true);
+        appender.start();
+        Socket socket = server.accept();
+        socket.setSoTimeout(10000);
+        for (int i = 0; i < 20; i++) {
+            LoggingEvent event = event(i);
+            appender.doAppend(event);
+            event.getArgumentArray()[0] = -1;
+        }
+        List<JsonObject> messages = read(socket, 20);
+        assertThat("all messages arrive", messages.size(), is(20));
+        for (int i = 0; i < 20; i++) {
+            assertThat("messages are encoded as they were logged", messages.get(i).get("short_message").getAsString(), is("message " + i));
+        }
+        socket.close();
+    }
+
+    @Test
+    public void testByteBudget() throws IOException {
+        server.close();
+        appender.setStopTimeoutMillis(0);
+        appender.setEagerEncoding(true);
+        appender.setBatchSize(1);
+        appender.setMaxQueuedBytes(2000);
+        appender.start();
+        for (int i = 0; i < 100; i++) {
+            appender.doAppend(event(i));
+        }
+        assertThat("queued bytes stay within the budget", appender.getQueuedBytes() <= 2000, is(true));
+        assertThat("the high-water mark stays within the budget", appender.getQueuedBytesHighWaterMark() <= 2000, is(true));
+        assertThat("the budget was used", appender.getQueuedBytesHighWaterMark() > 1000, is(true));
+        assertThat("events beyond the budget are dropped", appender.getDroppedNewestCount() > 80, is(true));
+    }
+
+    @Test(timeout = 10000)
+    public void testByteBudgetEvictsAcrossLanes() throws IOException {
+        server.close();
+        appender.setStopTimeoutMillis(0);
+        appender.setEagerEncoding(true);
+        appender.setBatchSize(1);
+        appender.setLevelLanes(true);
+        appender.setOverflowPolicy("drop_oldest");
+        appender.setMaxQueuedBytes(5000);
+        appender.start();
+        for (int i = 0; i < 200; i++) {
+            appender.doAppend(event(Level.DEBUG, i));
+        }
+        long evicted = appender.getDroppedOldestCount();
+        assertThat("debug events fill the budget", evicted > 100, is(true));
+        // The error lane is empty, so room has to come from the debug lane.
+        appender.doAppend(event(Level.ERROR, 200));
+        assertThat("a debug event is evicted for the error", appender.getDroppedOldestCount() > evicted, is(true));
+        assertThat(appender.getErrorLaneDepth(), is(1));
+        for (int i = 0; i < 200; i++) {
+            appender.doAppend(event(Level.ERROR, i));
+        }
+        // Now only errors hold the budget, and a debug event may not evict them.
+        long dropped = appender.getDroppedNewestCount();
+        appender.doAppend(event(Level.DEBUG, 400));
+        assertThat("a debug event that can't make room is dropped", appender.getDroppedNewestCount(), is(dropped + 1));
+        assertThat(appender.getDebugLaneDepth(), is(0));
+    }
+
+    @Test
+    public void testDropBelowLevelUsesWholeLanes() throws IOException {
+        server.close();
+        appender.setStopTimeoutMillis(0);
+        appender.setBatchSize(1);
+        appender.setLevelLanes(true);
+        appender.setLaneQueueSizes("debug=16");
+        appender.setOverflowPolicy("drop_below_level");
+        appender.setDropThreshold("WARN");
+        appender.start();
+        for (int i = 0; i < 40; i++) {
+            appender.doAppend(event(Level.DEBUG, i));
+        }
+        assertThat("the debug lane isn't held back for higher levels", appender.getDebugLaneDepth(), is(16));
+        assertThat(appender.getDroppedBelowLevelCount() > 0, is(true));
+        appender.doAppend(event(Level.ERROR, 40));
+        assertThat(appender.getErrorLaneDepth(), is(1));
+    }
+
+    @Test
+    public void testSpillDuringOutage() throws Exception {
+        int port = server.getLocalPort();
+        server.close();
+        appender.setSpillDirectory(folder.newFolder().getPath());
+        appender.setBatchSize(8);
+        appender.start();
+        for (int i = 0; i < 50; i++) {
+            appender.doAppend(event(i));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (appender.getInflightCount() > 0 || appender.getQueueDepth() > 0) {
+            assertThat("events are spilled", System.currentTimeMillis() < deadline, is(true));
+            Thread.sleep(10);
+        }
+        assertThat("nothing is dropped", appender.getDroppedCount(), is(0L));
+        assertThat(appender.getSpilledBytes() > 0, is(true));
+
+        server = new ServerSocket(port);
+        server.setSoTimeout(10000);
+        Socket socket = server.accept();
+        socket.setSoTimeout(10000);
+        for (int i = 50; i < 60; i++) {
+            appender.doAppend(event(i));
+        }
+        List<JsonObject> messages = read(socket, 60);
+        assertThat("all messages arrive", messages.size(), is(60));
+        for (int i = 0; i < 60; i++) {
+            assertThat("spilled messages come first, in order", messages.get(i).get("short_message").getAsString(), is("message " + i));
+        }
+        socket.close();
+    }
+
+    @Test
+    public void testPoolSpreadsBatches() throws Exception {
+        appender.setPoolSize(3);
+        appender.setBatchSize(10);
+        appender.start();
+        final List<JsonObject> messages = Collections.synchronizedList(new ArrayList<JsonObject>());
+        final List<Integer> perSocket = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            final Socket socket = server.accept();
+            socket.setSoTimeout(2000);
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    List<JsonObject> received = new ArrayList<JsonObject>();
+                    try {
+                        received.addAll(read(socket, Integer.MAX_VALUE));
+                    } catch (IOException e) {
+                        // pass
+                    } finally {
+                        messages.addAll(received);
+                        perSocket.add(received.size());
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        // The server may accept a socket before the appender sees the connect finish.
+        for (int i = 0; i < 100 && appender.getConnectionCount() < 3; i++)
+            Thread.sleep(10);
+        for (int i = 0; i < 300; i++) {
+            appender.doAppend(event(i));
+        }
+        for (Thread reader : readers)
+            reader.join();
+        Set<String> unique = new HashSet<String>();
+        for (JsonObject message : messages)
+            unique.add(message.get("short_message").getAsString());
+        assertThat("every message arrives once", messages.size(), is(300));
+        assertThat("every message arrives once", unique.size(), is(300));
+        int used = 0;
+        for (int n : perSocket)
+            used += n > 0 ? 1 : 0;
+        assertThat("batches go to more than one connection", used > 1, is(true));
+    }
+
+    @Test
+    public void testPartialWritesResume() throws Exception {
+        appender.setQueueSize(4096);
+        appender.setBatchSize(64);
+        appender.start();
+        Socket socket = server.accept();
+        socket.setSoTimeout(10000);
+        // Nothing is read until every event is logged, so the socket buffers fill
+        // up and writes are left partly done.
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            padding.append('x');
+        for (int i = 0; i < 2000; i++) {
+            LoggingEvent event = new LoggingEvent();
+            event.setLevel(Level.INFO);
+            event.setMessage("message {} " + padding);
+            event.setArgumentArray(new Object[] { i });
+            event.setLoggerName("TestLogger");
+            event.setThreadName("TestThread");
+            appender.doAppend(event);
+        }
+        List<JsonObject> messages = read(socket, 2000);
+        assertThat("all messages arrive", messages.size(), is(2000));
+        for (int i = 0; i < 2000; i++) {
+            assertThat("messages arrive intact and in order", messages.get(i).get("short_message").getAsString(),
+                    is("message " + i + " " + padding));
+        }
+        socket.close();
+    }
+
+    @Test
+    public void testAppendersShareOneIOThread() throws Exception {
+        GELFTCPAppender other = new GELFTCPAppender();
+        other.setContext(new LoggerContext());
+        other.setGelfHost("127.0.0.1");
+        other.setGelfPort(server.getLocalPort());
+        other.setLocalHost("other");
+        appender.start();
+        other.start();
+        try {
+            Socket first = server.accept();
+            Socket second = server.accept();
+            first.setSoTimeout(10000);
+            second.setSoTimeout(10000);
+            appender.doAppend(event(1));
+            other.doAppend(event(2));
+            List<JsonObject> messages = new ArrayList<JsonObject>();
+            messages.addAll(read(first, 1));
+            messages.addAll(read(second, 1));
+            Set<String> hosts = new HashSet<String>();
+            for (JsonObject message : messages)
+                hosts.add(message.get("host").getAsString());
+            assertThat("both appenders deliver", hosts, is((Set<String>) new HashSet<String>(Arrays.asList("test", "other"))));
+            int ioThreads = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("GELF-IO"))
+                    ioThreads++;
+            }
+            assertThat("the appenders share one I/O thread", ioThreads, is(1));
+            first.close();
+            second.close();
+        } finally {
+            other.stop();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.metastatic.gelfback;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local GELF TCP input for tests: accepts connections on a loopback port
+ * and hands each NUL-terminated message to a listener, on one thread per
+ * connection.
+ *
+ * It can be told to misbehave the way a struggling Graylog does: read slowly,
+ * stop reading altogether so TCP pushes back on the appender, or drop every
+ * connection. A message cut short by a dropped connection is counted as
+ * incomplete rather than passed on.
+ */
+class GELFTestSink implements Closeable {
+    interface Listener {
+        /**
+         * @param frame The message, without its NUL.
+         * @param receivedNanos When it was read, by {@link System#nanoTime()}.
+         */
+        void message(byte[] frame, long receivedNanos);
+    }
+
+    private static final int READ_SIZE = 64 * 1024;
+    private static final int SLOW_READ_SIZE = 4096;
+    private static final long STALL_POLL_MILLIS = 1;
+
+    private final ServerSocket server;
+    private final Listener listener;
+    private final Set<Socket> clients = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong incomplete = new AtomicLong();
+    private volatile long readDelayMicros;
+    private volatile boolean stalled;
+    private volatile boolean closed;
+
+    GELFTestSink(Listener listener) throws IOException {
+        this.listener = listener;
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "GELF-test-sink-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Read at most a few KiB at a time, pausing this long after each read; zero
+     * to read at full speed.
+     */
+    void setReadDelayMicros(long readDelayMicros) {
+        this.readDelayMicros = readDelayMicros;
+    }
+
+    /**
+     * Stop reading from every connection, or start again.
+     */
+    void setStalled(boolean stalled) {
+        this.stalled = stalled;
+    }
+
+    /**
+     * Close every open connection now, losing whatever is unread.
+     */
+    void dropConnections() {
+        for (Socket client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return How many connections were ever accepted.
+     */
+    long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    /**
+     * @return How many messages were cut short by a closed connection.
+     */
+    long getIncompleteCount() {
+        return incomplete.get();
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        dropConnections();
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            accepted.incrementAndGet();
+            clients.add(client);
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        read(client);
+                    } catch (IOException e) {
+                        // Dropped, by us or the appender.
+                    } finally {
+                        clients.remove(client);
+                        try {
+                            client.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            }, "GELF-test-sink-" + client.getPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private void read(Socket client) throws IOException {
+        InputStream in = client.getInputStream();
+        byte[] buf = new byte[READ_SIZE];
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        try {
+            while (true) {
+                while (stalled && !closed)
+                    pause(TimeUnit.MILLISECONDS.toMicros(STALL_POLL_MILLIS));
+                long delay = readDelayMicros;
+                int n = in.read(buf, 0, delay > 0 ? SLOW_READ_SIZE : READ_SIZE);
+                if (n < 0)
+                    return;
+                long now = System.nanoTime();
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    if (buf[i] == 0) {
+                        frame.write(buf, start, i - start);
+                        listener.message(frame.toByteArray(), now);
+                        frame.reset();
+                        start = i + 1;
+                    }
+                }
+                frame.write(buf, start, n - start);
+                if (delay > 0)
+                    pause(delay);
+            }
+        } finally {
+            if (frame.size() > 0)
+                incomplete.incrementAndGet();
+        }
+    }
+
+    private static void pause(long micros) {
+        try {
+            TimeUnit.MICROSECONDS.sleep(micros);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
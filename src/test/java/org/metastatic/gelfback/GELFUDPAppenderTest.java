@@ -0,0 +1,182 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GELFUDPAppenderTest {
+    private DatagramSocket server;
+    private GELFUDPAppender appender;
+
+    @Before
+    public void setup() throws IOException {
+        server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(10000);
+        appender = new GELFUDPAppender();
+        appender.setContext(new LoggerContext());
+        appender.setGelfHost("127.0.0.1");
+        appender.setGelfPort(server.getLocalPort());
+        appender.setLocalHost("test");
+    }
+
+    @After
+    public void teardown() {
+        appender.stop();
+        server.close();
+    }
+
+    private LoggingEvent event(String message) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLevel(Level.INFO);
+        event.setMessage(message);
+        event.setTimeStamp(978336000000L);
+        event.setLoggerName("TestLogger");
+        event.setThreadName("TestThread");
+        return event;
+    }
+
+    private byte[] receive() throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+        server.receive(packet);
+        return Arrays.copyOf(packet.getData(), packet.getLength());
+    }
+
+    private JsonObject parse(byte[] message) throws IOException {
+        return new Gson().fromJson(new String(message, "UTF-8"), JsonObject.class);
+    }
+
+    private static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void testSingleDatagram() throws Exception {
+        appender.start();
+        appender.doAppend(event("hello"));
+        byte[] datagram = receive();
+        assertThat("no NUL terminator", datagram[datagram.length - 1], is(not((byte) 0)));
+        JsonObject message = parse(datagram);
+        assertThat(message.get("short_message").getAsString(), is("hello"));
+        assertThat(message.get("host").getAsString(), is("test"));
+        assertThat(appender.awaitDrained(10, TimeUnit.SECONDS), is(true));
+        assertThat("the send is timed", appender.metrics.sendLatencyNanos.count(), is(1L));
+    }
+
+    @Test
+    public void testChunkedMessage() throws IOException {
+        appender.setMaxChunkSize(1000);
+        appender.start();
+        String text = repeat('x', 20000);
+        appender.doAppend(event(text));
+        byte[][] chunks = null;
+        long id = 0;
+        int received = 0;
+        while (chunks == null || received < chunks.length) {
+            byte[] datagram = receive();
+            assertThat("datagram fits", datagram.length <= 1000, is(true));
+            ByteBuffer b = ByteBuffer.wrap(datagram);
+            assertThat(b.get(), is((byte) 0x1e));
+            assertThat(b.get(), is((byte) 0x0f));
+            long chunkId = b.getLong();
+            int seq = b.get();
+            int count = b.get();
+            if (chunks == null) {
+                chunks = new byte[count][];
+                id = chunkId;
+            }
+            assertThat("chunks share an id", chunkId, is(id));
+            assertThat(count, is(chunks.length));
+            chunks[seq] = Arrays.copyOfRange(datagram, GELFChunker.HEADER_SIZE, datagram.length);
+            received++;
+        }
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        for (byte[] chunk : chunks)
+            message.write(chunk);
+        assertThat(parse(message.toByteArray()).get("short_message").getAsString(), is(text));
+    }
+
+    @Test
+    public void testOversizeMessageDropped() throws Exception {
+        appender.setMaxChunkSize(500);
+        appender.start();
+        appender.doAppend(event(repeat('x', 128 * 500)));
+        appender.doAppend(event("small"));
+        assertThat(parse(receive()).get("short_message").getAsString(), is("small"));
+        assertThat(appender.getDroppedOversizeCount(), is(1L));
+    }
+
+    @Test
+    public void testSendResumesAfterFailure() throws Exception {
+        appender.start();
+        appender.doAppend(event("before"));
+        assertThat(parse(receive()).get("short_message").getAsString(), is("before"));
+        int port = server.getLocalPort();
+        server.close();
+        // The port is closed now, so a datagram draws an ICMP reply that fails a later send.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (appender.getUnsentCount() == 0 && System.nanoTime() < deadline) {
+            appender.doAppend(event("lost"));
+            Thread.sleep(10);
+        }
+        assertThat("a send failed", appender.getUnsentCount() > 0, is(true));
+        server = new DatagramSocket(port, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(100);
+        // Well within the 60 second TTL, so this only passes if failure retries after a short delay.
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        String received = null;
+        while (received == null && System.nanoTime() < deadline) {
+            appender.doAppend(event("after"));
+            try {
+                received = parse(receive()).get("short_message").getAsString();
+            } catch (SocketTimeoutException e) {
+                // not yet
+            }
+        }
+        assertThat("sending resumes", received, is("after"));
+    }
+
+    @Test
+    public void testCompressedMessage() throws IOException {
+        appender.setCompression("gzip");
+        appender.setCompressionThreshold(1000);
+        appender.start();
+        String text = repeat('x', 2000);
+        appender.doAppend(event("short"));
+        appender.doAppend(event(text));
+        byte[] small = receive();
+        assertThat("small messages aren't compressed", parse(small).get("short_message").getAsString(), is("short"));
+        byte[] datagram = receive();
+        assertThat("GZIP magic", datagram[0] == (byte) 0x1f && datagram[1] == (byte) 0x8b, is(true));
+        assertThat("compressed is smaller", datagram.length < text.length(), is(true));
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(datagram));
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            message.write(buf, 0, n);
+        assertThat(parse(message.toByteArray()).get("short_message").getAsString(), is(text));
+    }
+}
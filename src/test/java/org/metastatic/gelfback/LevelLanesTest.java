@@ -0,0 +1,90 @@
+package org.metastatic.gelfback;
+
+import ch.qos.logback.classic.Level;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class LevelLanesTest {
+    private static QueuedEvent event(Level level, int i) {
+        return new EncodedEvent(level, "thread-" + i, new byte[0]);
+    }
+
+    private static LevelLanes lanes(int capacity) {
+        return new LevelLanes(new int[] { capacity, capacity, capacity, capacity }, new int[] { 4, 2, 1, 1 }, WaitStrategy.PARK);
+    }
+
+    private static boolean offer(LevelLanes lanes, QueuedEvent event) {
+        return lanes.laneFor(event.getLevel()).offer(event);
+    }
+
+    @Test
+    public void testWeightedDrain() {
+        LevelLanes lanes = lanes(64);
+        for (int i = 0; i < 10; i++)
+            offer(lanes, event(Level.DEBUG, i));
+        for (int i = 0; i < 10; i++)
+            offer(lanes, event(Level.ERROR, i));
+        List<QueuedEvent> drained = new ArrayList<QueuedEvent>();
+        assertThat(lanes.drainTo(drained, 5), is(5));
+        assertThat(drained.get(0).getLevel(), is(Level.ERROR));
+        assertThat(drained.get(3).getLevel(), is(Level.ERROR));
+        assertThat("debug gets its turn after the error lane's weight", drained.get(4).getLevel(), is(Level.DEBUG));
+        lanes.drainTo(drained, 100);
+        assertThat(drained.size(), is(20));
+        int errors = 0;
+        int debugs = 0;
+        for (QueuedEvent e : drained) {
+            if (e.getLevel() == Level.ERROR)
+                assertThat("order holds within a lane", e.getThreadName(), is("thread-" + errors++));
+            else
+                assertThat("order holds within a lane", e.getThreadName(), is("thread-" + debugs++));
+        }
+    }
+
+    @Test
+    public void testLanesHaveSeparateCapacity() {
+        LevelLanes lanes = lanes(4);
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (offer(lanes, event(Level.DEBUG, i)))
+                accepted++;
+        }
+        assertThat(accepted, is(4));
+        assertThat("a full debug lane doesn't block errors", offer(lanes, event(Level.ERROR, 0)), is(true));
+        assertThat(lanes.depth(LevelLanes.DEBUG), is(4));
+        assertThat(lanes.depth(LevelLanes.ERROR), is(1));
+        assertThat(lanes.size(), is(5));
+        assertThat("trace shares the debug lane", LevelLanes.laneOf(Level.TRACE), is(LevelLanes.DEBUG));
+    }
+
+    @Test
+    public void testPollWakesOnAnyLane() throws Exception {
+        final LevelLanes lanes = lanes(4);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                offer(lanes, event(Level.WARN, 0));
+            }
+        };
+        producer.start();
+        long start = System.nanoTime();
+        QueuedEvent e = lanes.poll(5, TimeUnit.SECONDS);
+        assertThat(e, notNullValue());
+        assertThat(e.getLevel(), is(Level.WARN));
+        assertThat("the consumer is woken, not timed out", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4), is(true));
+        producer.join();
+        assertThat(lanes.producedCount(), is(1L));
+        assertThat(lanes.consumedCount(), is(1L));
+    }
+}
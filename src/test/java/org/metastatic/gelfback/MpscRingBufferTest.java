@@ -0,0 +1,99 @@
+package org.metastatic.gelfback;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class MpscRingBufferTest {
+    @Test
+    public void testFifo() {
+        MpscRingBuffer<Integer> ring = new MpscRingBuffer<Integer>(4, WaitStrategy.PARK);
+        for (int i = 0; i < 4; i++)
+            assertThat("there is room for four elements", ring.offer(i), is(true));
+        assertThat("a fifth element doesn't fit", ring.offer(4), is(false));
+        assertThat("size is four", ring.size(), is(4));
+        for (int i = 0; i < 4; i++)
+            assertThat("elements come out in order", ring.poll(), is(i));
+        assertThat("the ring is empty", ring.poll(), nullValue());
+        assertThat("sequences count every element", ring.producedCount(), is(4L));
+        assertThat("sequences count every element", ring.consumedCount(), is(4L));
+    }
+
+    @Test
+    public void testCapacityRoundsUp() {
+        assertThat(new MpscRingBuffer<Integer>(1, WaitStrategy.PARK).capacity(), is(2));
+        assertThat(new MpscRingBuffer<Integer>(5, WaitStrategy.PARK).capacity(), is(8));
+        assertThat(new MpscRingBuffer<Integer>(1024, WaitStrategy.PARK).capacity(), is(1024));
+    }
+
+    @Test
+    public void testWrapsAround() {
+        MpscRingBuffer<Integer> ring = new MpscRingBuffer<Integer>(2, WaitStrategy.PARK);
+        for (int i = 0; i < 100; i++) {
+            assertThat(ring.offer(i), is(true));
+            assertThat(ring.poll(), is(i));
+        }
+    }
+
+    @Test
+    public void testTimedWaits() throws InterruptedException {
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            MpscRingBuffer<Integer> ring = new MpscRingBuffer<Integer>(2, strategy);
+            assertThat("poll times out on an empty ring", ring.poll(10, TimeUnit.MILLISECONDS), nullValue());
+            ring.offer(0);
+            ring.offer(1);
+            assertThat("offer times out on a full ring", ring.offer(2, 10, TimeUnit.MILLISECONDS), is(false));
+        }
+    }
+
+    private void testProducers(WaitStrategy strategy) throws InterruptedException {
+        final int producers = 8;
+        final int perProducer = 20000;
+        final MpscRingBuffer<long[]> ring = new MpscRingBuffer<long[]>(64, strategy);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        long[] e = new long[] { id, i };
+                        while (!ring.offer(e))
+                            Thread.yield();
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        long[] next = new long[producers];
+        for (int i = 0; i < producers * perProducer; i++) {
+            long[] e = ring.poll(10, TimeUnit.SECONDS);
+            assertThat("every element arrives", e, notNullValue());
+            assertThat("each producer's elements stay in order", e[1], is(next[(int) e[0]]));
+            next[(int) e[0]]++;
+        }
+        for (Thread t : threads)
+            t.join();
+        assertThat("nothing is left over", ring.poll(), nullValue());
+    }
+
+    @Test
+    public void testManyProducersPark() throws InterruptedException {
+        testProducers(WaitStrategy.PARK);
+    }
+
+    @Test
+    public void testManyProducersSpinThenPark() throws InterruptedException {
+        testProducers(WaitStrategy.SPIN_THEN_PARK);
+    }
+
+    @Test
+    public void testManyProducersSleep() throws InterruptedException {
+        testProducers(WaitStrategy.SLEEP);
+    }
+}
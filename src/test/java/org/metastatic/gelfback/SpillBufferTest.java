@@ -0,0 +1,139 @@
+package org.metastatic.gelfback;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SpillBufferTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuffersOutputStream record(String s) throws IOException {
+        ByteBuffersOutputStream out = new ByteBuffersOutputStream(16);
+        out.write(s.getBytes("UTF-8"));
+        return out;
+    }
+
+    private static String contents(ByteBuffersOutputStream out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (ByteBuffer b : out.toBuffers()) {
+            byte[] chunk = new byte[b.remaining()];
+            b.get(chunk);
+            bytes.write(chunk);
+        }
+        return bytes.toString("UTF-8");
+    }
+
+    private int segmentFiles(File dir) {
+        return dir.list().length;
+    }
+
+    @Test
+    public void testReplayInOrder() throws IOException {
+        File dir = folder.newFolder();
+        SpillBuffer spill = new SpillBuffer(dir, 64, 1024);
+        assertThat(spill.isEmpty(), is(true));
+        for (int i = 0; i < 10; i++)
+            assertThat(spill.append(record("record number " + i + ";")), is(true));
+        assertThat(spill.isEmpty(), is(false));
+        assertThat("records span several segments", segmentFiles(dir) > 1, is(true));
+        ByteBuffersOutputStream sink = new ByteBuffersOutputStream(16);
+        spill.replayTo(sink, Long.MAX_VALUE);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++)
+            expected.append("record number ").append(i).append(';');
+        assertThat(contents(sink), is(expected.toString()));
+        assertThat("records are kept until acknowledged", spill.isEmpty(), is(false));
+        spill.acknowledge();
+        assertThat(spill.isEmpty(), is(true));
+        assertThat("used-up segments are deleted", segmentFiles(dir), is(1));
+        spill.close();
+    }
+
+    @Test
+    public void testReplayBudget() throws IOException {
+        SpillBuffer spill = new SpillBuffer(folder.newFolder(), 1024, 4096);
+        for (int i = 0; i < 10; i++)
+            spill.append(record("0123456789"));
+        ByteBuffersOutputStream sink = new ByteBuffersOutputStream(16);
+        assertThat(spill.replayTo(sink, 25), is(30L));
+        assertThat(spill.pendingBytes(), is(10 * 14L));
+        spill.acknowledge();
+        assertThat(spill.pendingBytes(), is(7 * 14L));
+        spill.close();
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        File dir = folder.newFolder();
+        SpillBuffer spill = new SpillBuffer(dir, 64, 1024);
+        for (int i = 0; i < 6; i++)
+            spill.append(record("record " + i + ";"));
+        ByteBuffersOutputStream sink = new ByteBuffersOutputStream(16);
+        spill.replayTo(sink, 1);
+        assertThat(contents(sink), is("record 0;"));
+        spill.acknowledge();
+        spill.close();
+
+        SpillBuffer reopened = new SpillBuffer(dir, 64, 1024);
+        assertThat(reopened.pendingBytes(), is(5 * 13L));
+        reopened.append(record("record 6;"));
+        sink = new ByteBuffersOutputStream(16);
+        reopened.replayTo(sink, Long.MAX_VALUE);
+        assertThat("replayed records are not sent again", contents(sink),
+                is("record 1;record 2;record 3;record 4;record 5;record 6;"));
+        reopened.acknowledge();
+        reopened.close();
+
+        assertThat(new SpillBuffer(dir, 64, 1024).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testUnacknowledgedReplayIsKept() throws IOException {
+        File dir = folder.newFolder();
+        SpillBuffer spill = new SpillBuffer(dir, 64, 1024);
+        for (int i = 0; i < 6; i++)
+            spill.append(record("record " + i + ";"));
+        ByteBuffersOutputStream sink = new ByteBuffersOutputStream(16);
+        spill.replayTo(sink, 20);
+        assertThat(contents(sink), is("record 0;record 1;record 2;"));
+        spill.rewind();
+        sink = new ByteBuffersOutputStream(16);
+        spill.replayTo(sink, 1);
+        assertThat("a rewound replay starts over", contents(sink), is("record 0;"));
+        spill.close();
+
+        SpillBuffer reopened = new SpillBuffer(dir, 64, 1024);
+        sink = new ByteBuffersOutputStream(16);
+        reopened.replayTo(sink, Long.MAX_VALUE);
+        assertThat("records never acknowledged are sent again", contents(sink),
+                is("record 0;record 1;record 2;record 3;record 4;record 5;"));
+        reopened.close();
+    }
+
+    @Test
+    public void testDiskCap() throws IOException {
+        SpillBuffer spill = new SpillBuffer(folder.newFolder(), 64, 128);
+        int accepted = 0;
+        for (int i = 0; i < 20; i++) {
+            if (spill.append(record("0123456789")))
+                accepted++;
+        }
+        assertThat("two segments of four records each", accepted, is(8));
+        assertThat(spill.diskBytes(), is(128L));
+        assertThat("records larger than a segment are refused", spill.append(record(new String(new char[61]))), is(false));
+        spill.replayTo(new ByteBuffersOutputStream(16), Long.MAX_VALUE);
+        assertThat("space is held until the replay is acknowledged", spill.append(record("0123456789")), is(false));
+        spill.acknowledge();
+        assertThat("space is freed by replay", spill.append(record("0123456789")), is(true));
+        spill.close();
+    }
+}